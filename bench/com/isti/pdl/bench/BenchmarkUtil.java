@@ -0,0 +1,84 @@
+package com.isti.pdl.bench;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.stream.Stream;
+
+import gov.usgs.earthquake.distribution.URLNotification;
+import gov.usgs.earthquake.product.ProductId;
+
+/**
+ * Benchmark utility functions.
+ */
+public class BenchmarkUtil
+{
+  /**
+   * Create a notification.
+   * 
+   * @param i the notification number.
+   * @return the notification.
+   * @throws IOException if the URL is not valid.
+   */
+  public static URLNotification createNotification(int i) throws IOException
+  {
+    final long time = System.currentTimeMillis();
+    final ProductId id = new ProductId("us", "origin",
+        "us7000" + Integer.toString(i % 1000, 36), new Date(time + i));
+    return new URLNotification(id, new Date(time + 86400000L),
+        new URL("http://ehppdl1.cr.usgs.gov/tracker/"),
+        new URL("https://earthquake.usgs.gov/product/origin/us/" + i
+            + "?format=xml&version=" + i));
+  }
+
+  /**
+   * Delete the directory and its contents.
+   * 
+   * @param dir the directory.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static void deleteDirectory(Path dir) throws IOException
+  {
+    if (!Files.exists(dir))
+    {
+      return;
+    }
+    try (Stream<Path> stream = Files.walk(dir))
+    {
+      stream.sorted(Comparator.reverseOrder()).forEach(path -> {
+        try
+        {
+          Files.delete(path);
+        }
+        catch (IOException ex)
+        {
+        }
+      });
+    }
+  }
+
+  /**
+   * Delete the contents of the directory.
+   * 
+   * @param dir the directory.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static void emptyDirectory(Path dir) throws IOException
+  {
+    try (Stream<Path> stream = Files.list(dir))
+    {
+      stream.forEach(path -> {
+        try
+        {
+          Files.delete(path);
+        }
+        catch (IOException ex)
+        {
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package com.isti.pdl.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.isti.pdl.eidsutil.EIDSReader;
+import com.isti.pdl.eidsutil.EIDSWriter;
+
+import gov.usgs.earthquake.distribution.DefaultNotificationReceiver;
+import gov.usgs.earthquake.distribution.Notification;
+import gov.usgs.earthquake.distribution.URLNotification;
+
+/**
+ * Latency from EIDSWriter.processNotification until the EIDSReader calls
+ * receiveNotification for the notification.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark
+{
+  /** The transport. */
+  @Param({ "file", "journal" })
+  public String transport;
+
+  /** The notification directory. */
+  private Path dir;
+  /** The notification. */
+  private URLNotification notification;
+  /** The reader. */
+  private EIDSReader reader;
+  /** The received notifications. */
+  private final BlockingQueue<Notification> received = new LinkedBlockingQueue<Notification>();
+  /** The writer. */
+  private EIDSWriter writer;
+
+  @Setup
+  public void setup() throws Exception
+  {
+    dir = Files.createTempDirectory("endtoendbench");
+    notification = BenchmarkUtil.createNotification(1);
+    final String[] args =
+    { "--notificationDir=" + dir, "--transport=" + transport };
+    writer = new EIDSWriter();
+    writer.configure(args);
+    writer.startup();
+    reader = new EIDSReader();
+    reader.configure(args);
+    reader.setNotificationReceiver(new DefaultNotificationReceiver()
+    {
+      @Override
+      public void receiveNotification(Notification n)
+      {
+        received.add(n);
+      }
+    });
+    reader.startup();
+  }
+
+  @Benchmark
+  public Notification writeToReceive() throws Exception
+  {
+    writer.processNotification(notification);
+    return received.take();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception
+  {
+    writer.shutdown();
+    reader.shutdown();
+    BenchmarkUtil.deleteDirectory(dir);
+  }
+}
@@ -0,0 +1,70 @@
+package com.isti.pdl.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.isti.pdl.eidsutil.EIDSConst;
+import com.isti.pdl.eidsutil.UtilFns;
+
+/**
+ * Time to list the notification directory with UtilFns.getNotificationFiles.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListingBenchmark
+{
+  /** The number of notification files. */
+  @Param({ "1000", "10000", "100000" })
+  public int fileCount;
+
+  /** The notification directory. */
+  private Path dir;
+  /** The files. */
+  private final List<Path> files = new ArrayList<Path>();
+
+  @Setup
+  public void setup() throws Exception
+  {
+    dir = Files.createTempDirectory("listingbench");
+    final long time = System.currentTimeMillis();
+    for (int i = 0; i < fileCount; i++)
+    {
+      Files.createFile(dir.resolve(EIDSConst.DEFAULT_NOTIFICATIONFILEPREFIX
+          + time + "_" + i + EIDSConst.NOTIFICATION_FILE_EXT));
+    }
+  }
+
+  @Benchmark
+  public int getNotificationFiles() throws Exception
+  {
+    files.clear();
+    return UtilFns.getNotificationFiles(dir,
+        EIDSConst.DEFAULT_NOTIFICATIONFILEPREFIX, files).size();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception
+  {
+    BenchmarkUtil.deleteDirectory(dir);
+  }
+}
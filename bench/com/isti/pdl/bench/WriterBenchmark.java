@@ -0,0 +1,83 @@
+package com.isti.pdl.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.isti.pdl.eidsutil.EIDSWriter;
+
+import gov.usgs.earthquake.distribution.URLNotification;
+
+/**
+ * Throughput of EIDSWriter.processNotification.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WriterBenchmark
+{
+  /** The durability. */
+  @Param({ "none", "batch" })
+  public String durability;
+  /** The transport. */
+  @Param({ "file", "journal" })
+  public String transport;
+
+  /** The notification directory. */
+  private Path dir;
+  /** The notification. */
+  private URLNotification notification;
+  /** The writer. */
+  private EIDSWriter writer;
+
+  @Setup
+  public void setup() throws Exception
+  {
+    dir = Files.createTempDirectory("writerbench");
+    notification = BenchmarkUtil.createNotification(1);
+    writer = new EIDSWriter();
+    writer.configure(new String[]
+    { "--notificationDir=" + dir, "--durability=" + durability,
+        "--transport=" + transport });
+    writer.startup();
+  }
+
+  @TearDown(Level.Iteration)
+  public void emptyDirectory() throws Exception
+  {
+    // restart so the journal writer does not hold a deleted segment
+    writer.shutdown();
+    BenchmarkUtil.emptyDirectory(dir);
+    writer.startup();
+  }
+
+  @Benchmark
+  public void processNotification() throws Exception
+  {
+    writer.processNotification(notification);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception
+  {
+    writer.shutdown();
+    BenchmarkUtil.deleteDirectory(dir);
+  }
+}
@@ -0,0 +1,101 @@
+package com.isti.pdl.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.isti.pdl.eidsutil.ByteBufferInputStream;
+import com.isti.pdl.eidsutil.NotificationBinaryCodec;
+import com.isti.pdl.eidsutil.NotificationXmlEncoder;
+import com.isti.pdl.eidsutil.UtilFns;
+
+import gov.usgs.earthquake.distribution.URLNotification;
+
+/**
+ * Throughput of the notification XML serialization and parsing compared with
+ * the binary encoding.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class XmlBenchmark
+{
+  /** The binary codec. */
+  private final NotificationBinaryCodec binaryCodec = //
+      new NotificationBinaryCodec();
+  /** The binary encoded notification. */
+  private ByteBuffer binaryEncoded;
+  /** The encoder. */
+  private final NotificationXmlEncoder encoder = new NotificationXmlEncoder();
+  /** The encoded notification. */
+  private ByteBuffer encoded;
+  /** The notification. */
+  private URLNotification notification;
+  /** The notification XML. */
+  private String xml;
+
+  @Setup
+  public void setup() throws IOException
+  {
+    notification = BenchmarkUtil.createNotification(1);
+    xml = UtilFns.toXML(notification);
+    final ByteBuffer b = encoder.encode(notification);
+    encoded = ByteBuffer.allocateDirect(b.remaining());
+    encoded.put(b);
+    encoded.flip();
+    final ByteBuffer bb = binaryCodec.encode(notification);
+    binaryEncoded = ByteBuffer.allocateDirect(bb.remaining());
+    binaryEncoded.put(bb);
+    binaryEncoded.flip();
+  }
+
+  @Benchmark
+  public URLNotification decodeBinary() throws Exception
+  {
+    return UtilFns.parseNotification(binaryEncoded.duplicate());
+  }
+
+  @Benchmark
+  public ByteBuffer encode()
+  {
+    return encoder.encode(notification);
+  }
+
+  @Benchmark
+  public ByteBuffer encodeBinary()
+  {
+    return binaryCodec.encode(notification);
+  }
+
+  @Benchmark
+  public URLNotification parseBuffer() throws Exception
+  {
+    return UtilFns.parseXml(new ByteBufferInputStream(encoded.duplicate()));
+  }
+
+  @Benchmark
+  public URLNotification parseXml() throws Exception
+  {
+    return UtilFns.parseXml(xml);
+  }
+
+  @Benchmark
+  public String toXML()
+  {
+    return UtilFns.toXML(notification);
+  }
+}
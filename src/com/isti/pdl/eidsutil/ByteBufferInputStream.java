@@ -0,0 +1,87 @@
+package com.isti.pdl.eidsutil;
+
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream that reads from the remaining bytes of a byte buffer without
+ * copying it. The buffer position is advanced as bytes are read.
+ */
+public class ByteBufferInputStream extends InputStream
+{
+  /** The byte buffer. */
+  private final ByteBuffer buffer;
+  /** The marked position. */
+  private int mark;
+
+  /**
+   * Create the byte buffer input stream.
+   * 
+   * @param buffer the byte buffer.
+   */
+  public ByteBufferInputStream(ByteBuffer buffer)
+  {
+    this.buffer = buffer;
+    mark = buffer.position();
+  }
+
+  @Override
+  public int available()
+  {
+    return buffer.remaining();
+  }
+
+  @Override
+  public synchronized void mark(int readlimit)
+  {
+    mark = buffer.position();
+  }
+
+  @Override
+  public boolean markSupported()
+  {
+    return true;
+  }
+
+  @Override
+  public int read()
+  {
+    if (!buffer.hasRemaining())
+    {
+      return -1;
+    }
+    return buffer.get() & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len)
+  {
+    if (len == 0)
+    {
+      return 0;
+    }
+    if (!buffer.hasRemaining())
+    {
+      return -1;
+    }
+    len = Math.min(len, buffer.remaining());
+    buffer.get(b, off, len);
+    return len;
+  }
+
+  @Override
+  public synchronized void reset()
+  {
+    // cast for compatibility with the Java 8 runtime
+    ((Buffer) buffer).position(mark);
+  }
+
+  @Override
+  public long skip(long n)
+  {
+    final int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+    ((Buffer) buffer).position(buffer.position() + count);
+    return count;
+  }
+}
@@ -0,0 +1,128 @@
+package com.isti.pdl.eidsutil;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Polls directories for new files on file systems where watch events are not
+ * reliable, such as network file systems. A directory is only listed when its
+ * modification time has changed, or is too recent to show a later change, so
+ * that an idle directory costs a single status check. The time between polls
+ * is reset to the minimum whenever new files are found and doubles up to the
+ * maximum while none are found, so it follows the arrival rate.
+ */
+public class DirectoryPoller
+{
+  /**
+   * The modification time resolution in milliseconds. A file created within
+   * this time of the last modification may not change the modification time
+   * on some file systems.
+   */
+  private static final long MTIME_RESOLUTION_MS = 2000;
+
+  /** The directories. */
+  private final List<Path> dirs;
+  /** The poll interval in milliseconds. */
+  private long interval;
+  /** The last modification time of each directory when it was listed. */
+  private final Map<Path, FileTime> listedTimes = new HashMap<Path, FileTime>();
+  /** The maximum poll interval in milliseconds. */
+  private final long maxInterval;
+  /** The minimum poll interval in milliseconds. */
+  private final long minInterval;
+  /** The time of the next poll in milliseconds. */
+  private long nextTime;
+
+  /**
+   * Create the directory poller.
+   * 
+   * @param dirs        the directories.
+   * @param minInterval the minimum poll interval in milliseconds.
+   * @param maxInterval the maximum poll interval in milliseconds.
+   */
+  public DirectoryPoller(List<Path> dirs, long minInterval, long maxInterval)
+  {
+    this.dirs = dirs;
+    this.minInterval = minInterval;
+    this.maxInterval = Math.max(minInterval, maxInterval);
+    interval = minInterval;
+    nextTime = System.currentTimeMillis() + interval;
+  }
+
+  /**
+   * Get the directories that may have changed since they were last listed.
+   * The directories are assumed to be listed before the next poll.
+   * 
+   * @param changedDirs the list for the directories that may have changed.
+   * @return the directories that may have changed.
+   * @throws IOException if an I/O error occurs.
+   */
+  public List<Path> getChangedDirs(List<Path> changedDirs) throws IOException
+  {
+    final long time = System.currentTimeMillis();
+    FileTime mtime;
+    for (Path dir : dirs)
+    {
+      mtime = Files.getLastModifiedTime(dir);
+      if (!mtime.equals(listedTimes.put(dir, mtime))
+          || time - mtime.toMillis() < MTIME_RESOLUTION_MS)
+      {
+        changedDirs.add(dir);
+      }
+    }
+    return changedDirs;
+  }
+
+  /**
+   * Get the poll interval.
+   * 
+   * @return the poll interval in milliseconds.
+   */
+  public long getInterval()
+  {
+    return interval;
+  }
+
+  /**
+   * Get the time until the next poll.
+   * 
+   * @return the time in milliseconds, 0 if a poll is due.
+   */
+  public long getWaitTime()
+  {
+    return Math.max(0, nextTime - System.currentTimeMillis());
+  }
+
+  /**
+   * Determine if a poll is due.
+   * 
+   * @return true if a poll is due, false otherwise.
+   */
+  public boolean isDue()
+  {
+    return System.currentTimeMillis() >= nextTime;
+  }
+
+  /**
+   * Update the poll interval after a poll.
+   * 
+   * @param found the number of new files found.
+   */
+  public void polled(int found)
+  {
+    if (found > 0)
+    {
+      interval = minInterval;
+    }
+    else
+    {
+      interval = Math.min(maxInterval, interval * 2);
+    }
+    nextTime = System.currentTimeMillis() + interval;
+  }
+}
@@ -8,4 +8,40 @@ public interface EIDSConst
   public static final String DEFAULT_NOTIFICATIONFILEPREFIX = "eids_";
   /** The EIDS notification file extension. */
   public static final String NOTIFICATION_FILE_EXT = ".xml";
+  /** The temporary file extension. */
+  public static final String TEMP_FILE_EXT = ".tmp";
+  /** The journal segment file extension. */
+  public static final String JOURNAL_FILE_EXT = ".journal";
+  /** The journal checkpoint file extension. */
+  public static final String CHECKPOINT_FILE_EXT = ".checkpoint";
+  /** The file-per-notification transport. */
+  public static final String TRANSPORT_FILE = "file";
+  /** The journal transport. */
+  public static final String TRANSPORT_JOURNAL = "journal";
+  /** The backpressure marker file name after the notification file prefix. */
+  public static final String BACKPRESSURE_FILE = "backpressure";
+  /**
+   * The time in milliseconds between updates of the backpressure file
+   * modification time while the reader has backpressure.
+   */
+  public static final long BACKPRESSURE_REFRESH_MS = 10000;
+  /**
+   * The age in milliseconds of the backpressure file after which it was left
+   * by a reader that stopped and is ignored.
+   */
+  public static final long BACKPRESSURE_STALE_MS = 60000;
+  /** The dispatched log file name after the notification file prefix. */
+  public static final String DISPATCHED_FILE = "dispatched";
+  /**
+   * The shard directory name after the notification file prefix, followed by
+   * the shard number.
+   */
+  public static final String SHARD_DIR = "shard";
+  /**
+   * The claim directory name after the notification file prefix, followed by
+   * the node ID.
+   */
+  public static final String CLAIM_DIR = "claim_";
+  /** The claim lease file name after the notification file prefix. */
+  public static final String LEASE_FILE = "lease";
 }
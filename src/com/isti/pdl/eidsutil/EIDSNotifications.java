@@ -1,26 +1,85 @@
 package com.isti.pdl.eidsutil;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import gov.usgs.util.Config;
 import gov.usgs.util.Configurable;
 
 public class EIDSNotifications implements Configurable, EIDSConst
 {
+  /** The default dedupe maximum age in milliseconds. */
+  public static final long DEFAULT_DEDUPEMAXAGEMS = 3600000;
+  /** The default journal segment size in bytes. */
+  public static final long DEFAULT_JOURNALSEGMENTSIZE = 64L * 1024 * 1024;
+  /**
+   * The dedupe cache size key. If the dedupe cache size is not specified or
+   * is 0 repeated notifications are not discarded.
+   */
+  public static final String KEY_DEDUPECACHESIZE = "dedupeCacheSize";
+  /**
+   * The dedupe maximum age key. Notifications are discarded if the same
+   * product ID and update time was seen within this many milliseconds.
+   */
+  public static final String KEY_DEDUPEMAXAGEMS = "dedupeMaxAgeMs";
+  /** The journal segment size key. */
+  public static final String KEY_JOURNALSEGMENTSIZE = "journalSegmentSize";
   /** The notification directory key. */
   public static final String KEY_NOTIFICATIONDIR = "notificationDir";
   /** The notification file prefix key. */
   public static final String KEY_NOTIFICATIONFILEPREFIX = "notificationFilePrefix";
+  /**
+   * The notification shards key. If the number of shards is more than 1 the
+   * notification files are spread across that many subdirectories of the
+   * notification directory by a hash of the filename so that the size of
+   * each directory stays bounded during a large backlog. The writers and the
+   * reader must use the same number of shards.
+   */
+  public static final String KEY_NOTIFICATIONSHARDS = "notificationShards";
+  /**
+   * The transport key, either "file" (the default) for a file per notification
+   * or "journal" for appending notifications to journal segment files.
+   */
+  public static final String KEY_TRANSPORT = "transport";
   /** The configuration keys. */
   public static final String[] KEY_VALUES =
-  { KEY_NOTIFICATIONDIR, KEY_NOTIFICATIONFILEPREFIX };
+  { KEY_DEDUPECACHESIZE, KEY_DEDUPEMAXAGEMS, KEY_JOURNALSEGMENTSIZE,
+      KEY_NOTIFICATIONDIR, KEY_NOTIFICATIONFILEPREFIX, KEY_NOTIFICATIONSHARDS,
+      KEY_TRANSPORT };
+  /** The instance ID that makes filenames unique across processes. */
+  private static final String INSTANCE_ID = String.format("%08x",
+      new SecureRandom().nextInt());
+  /** The last filename time. */
+  private static final AtomicLong LAST_TIME = new AtomicLong();
+  /** The filename sequence number. */
+  private static final AtomicLong SEQUENCE = new AtomicLong();
+  /** The number of sequence number digits. */
+  private static final int SEQUENCE_DIGITS = 10;
+  /** The number of time digits. */
+  private static final int TIME_DIGITS = 13;
 
+  /** The dedupe cache size or 0 if none. */
+  private int dedupeCacheSize;
+  /** The dedupe maximum age in milliseconds. */
+  private long dedupeMaxAgeMs = DEFAULT_DEDUPEMAXAGEMS;
+  /** The journal segment size in bytes. */
+  private long journalSegmentSize = DEFAULT_JOURNALSEGMENTSIZE;
   /** Name of this configurable object. */
   private String name;
   /** The notification directory. */
   private File notificationDir;
   /** The notification file prefix. */
   private String notificationFilePrefix = DEFAULT_NOTIFICATIONFILEPREFIX;
+  /** The number of notification shards or 1 if none. */
+  private int notificationShards = 1;
+  /** The transport. */
+  private String transport = TRANSPORT_FILE;
 
   /**
    * Create the EIDS file configurable.
@@ -68,13 +127,130 @@ public class EIDSNotifications implements Configurable, EIDSConst
   }
 
   /**
-   * Get the filename for the current time.
+   * Append the value zero padded to the specified number of digits.
+   * 
+   * @param sb     the string builder.
+   * @param value  the non-negative value.
+   * @param digits the number of digits.
+   * @return the string builder.
+   */
+  private static StringBuilder appendPadded(StringBuilder sb, long value,
+      int digits)
+  {
+    final String s = Long.toString(value);
+    for (int i = s.length(); i < digits; i++)
+    {
+      sb.append('0');
+    }
+    return sb.append(s);
+  }
+
+  /**
+   * Create the dedupe cache.
+   * 
+   * @return the dedupe cache or null if none.
+   */
+  protected NotificationDedupeCache createDedupeCache()
+  {
+    return dedupeCacheSize > 0
+        ? new NotificationDedupeCache(dedupeCacheSize, dedupeMaxAgeMs)
+        : null;
+  }
+
+  /**
+   * Get the backpressure file. The reader creates the file while it is
+   * overloaded, updates its modification time while it remains overloaded and
+   * removes it once it has caught up.
+   * 
+   * @return the backpressure file.
+   */
+  public File getBackpressureFile()
+  {
+    return new File(getNotificationDir(),
+        notificationFilePrefix + BACKPRESSURE_FILE);
+  }
+
+  /**
+   * Get the dedupe cache size.
+   * 
+   * @return the dedupe cache size or 0 if none.
+   */
+  public int getDedupeCacheSize()
+  {
+    return dedupeCacheSize;
+  }
+
+  /**
+   * Get the dedupe maximum age.
+   * 
+   * @return the dedupe maximum age in milliseconds.
+   */
+  public long getDedupeMaxAgeMs()
+  {
+    return dedupeMaxAgeMs;
+  }
+
+  /**
+   * Get the dispatched log file. The reader records each file that has been
+   * dispatched but not disposed of so that it is not dispatched again after a
+   * restart.
    * 
+   * @return the dispatched log file.
+   */
+  public File getDispatchedLogFile()
+  {
+    return new File(getNotificationDir(),
+        notificationFilePrefix + DISPATCHED_FILE);
+  }
+
+  /**
+   * Get the unique filename for the current time. The filename is the prefix
+   * followed by the time, the sequence number, the instance ID and the product
+   * type if any, so that filenames sort in the order they were created by each
+   * writer, are unique without checking for existing files and the reader may
+   * schedule the files by product type without reading them.
+   * 
+   * @param type the product type or null if none.
    * @return the filename.
    */
-  protected String getFilename()
+  protected String getFilename(String type)
+  {
+    // never go backwards if the clock is adjusted
+    final long time = LAST_TIME.accumulateAndGet(System.currentTimeMillis(),
+        Math::max);
+    final StringBuilder sb = new StringBuilder(notificationFilePrefix.length()
+        + TIME_DIGITS + SEQUENCE_DIGITS + INSTANCE_ID.length() + 3
+        + (type != null ? type.length() : 0));
+    sb.append(notificationFilePrefix);
+    appendPadded(sb, time, TIME_DIGITS).append('_');
+    appendPadded(sb, SEQUENCE.getAndIncrement(), SEQUENCE_DIGITS).append('_');
+    sb.append(INSTANCE_ID);
+    if (type != null)
+    {
+      sb.append('_').append(UtilFns.getNotificationTypeName(type));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Get the journal checkpoint file.
+   * 
+   * @return the journal checkpoint file.
+   */
+  public File getJournalCheckpointFile()
+  {
+    return new File(getNotificationDir(),
+        notificationFilePrefix + TRANSPORT_JOURNAL + CHECKPOINT_FILE_EXT);
+  }
+
+  /**
+   * Get the journal segment size.
+   * 
+   * @return the journal segment size in bytes.
+   */
+  public long getJournalSegmentSize()
   {
-    return notificationFilePrefix + System.currentTimeMillis();
+    return journalSegmentSize;
   }
 
   @Override
@@ -99,26 +275,31 @@ public class EIDSNotifications implements Configurable, EIDSConst
   }
 
   /**
-   * Get the unique notification file.
+   * Get the directory for the notification file.
    * 
-   * @param filename the base filename.
-   * @return the notification file.
+   * @param filename the notification filename.
+   * @return the shard directory selected by a hash of the filename or the
+   *         notification directory if there are no shards.
    */
-  protected File getNotificationFile(String filename)
+  public File getNotificationDir(String filename)
   {
-    int i = 0;
-    File notificationFile;
-    do
+    if (notificationShards <= 1)
     {
-      if (i >= 1000)
-      {
-        return null;
-      }
-      notificationFile = new File(notificationDir,
-          filename + "_" + Integer.toString(i++) + NOTIFICATION_FILE_EXT);
+      return getNotificationDir();
     }
-    while (notificationFile.exists());
-    return notificationFile;
+    return getShardDir(Math.floorMod(filename.hashCode(), notificationShards));
+  }
+
+  /**
+   * Get the notification file.
+   * 
+   * @param filename the unique filename.
+   * @return the notification file.
+   */
+  protected File getNotificationFile(String filename)
+  {
+    filename += NOTIFICATION_FILE_EXT;
+    return new File(getNotificationDir(filename), filename);
   }
 
   /**
@@ -131,6 +312,102 @@ public class EIDSNotifications implements Configurable, EIDSConst
     return notificationFilePrefix;
   }
 
+  /**
+   * Get the notification paths, the notification directory followed by the
+   * shard directories. The shard directories are created if they do not
+   * exist.
+   * 
+   * @return the notification paths.
+   * @throws IOException if a shard directory could not be created.
+   */
+  public List<Path> getNotificationPaths() throws IOException
+  {
+    final List<Path> paths = new ArrayList<Path>(notificationShards + 1);
+    paths.add(getNotificationDir().toPath());
+    if (notificationShards > 1)
+    {
+      for (int shard = 0; shard < notificationShards; shard++)
+      {
+        paths.add(Files.createDirectories(getShardDir(shard).toPath()));
+      }
+    }
+    return paths;
+  }
+
+  /**
+   * Get the number of notification shards.
+   * 
+   * @return the number of notification shards or 1 if none.
+   */
+  public int getNotificationShards()
+  {
+    return notificationShards;
+  }
+
+  /**
+   * Get the shard directory.
+   * 
+   * @param shard the shard number.
+   * @return the shard directory.
+   */
+  private File getShardDir(int shard)
+  {
+    return new File(getNotificationDir(),
+        notificationFilePrefix + SHARD_DIR + shard);
+  }
+
+  /**
+   * Get the transport.
+   * 
+   * @return the transport, not null.
+   */
+  public String getTransport()
+  {
+    return transport;
+  }
+
+  /**
+   * Determine if the journal transport is used.
+   * 
+   * @return true if the journal transport is used, false if a file is used for
+   *         each notification.
+   */
+  public boolean isJournalTransport()
+  {
+    return TRANSPORT_JOURNAL.equals(transport);
+  }
+
+  /**
+   * Set the dedupe cache size. This must be set before startup.
+   * 
+   * @param dedupeCacheSize the dedupe cache size or 0 if none.
+   */
+  public void setDedupeCacheSize(int dedupeCacheSize)
+  {
+    this.dedupeCacheSize = Math.max(0, dedupeCacheSize);
+  }
+
+  /**
+   * Set the dedupe maximum age. This must be set before startup.
+   * 
+   * @param dedupeMaxAgeMs the dedupe maximum age in milliseconds.
+   */
+  public void setDedupeMaxAgeMs(long dedupeMaxAgeMs)
+  {
+    this.dedupeMaxAgeMs = Math.max(0, dedupeMaxAgeMs);
+  }
+
+  /**
+   * Set the journal segment size.
+   * 
+   * @param journalSegmentSize the size in bytes at which the journal rolls to
+   *                           a new segment.
+   */
+  public void setJournalSegmentSize(long journalSegmentSize)
+  {
+    this.journalSegmentSize = Math.max(1, journalSegmentSize);
+  }
+
   @Override
   public void setName(String name)
   {
@@ -169,6 +446,17 @@ public class EIDSNotifications implements Configurable, EIDSConst
     notificationFilePrefix = s;
   }
 
+  /**
+   * Set the number of notification shards. This must be set before startup.
+   * 
+   * @param notificationShards the number of notification shards or 1 if
+   *                           none.
+   */
+  public void setNotificationShards(int notificationShards)
+  {
+    this.notificationShards = Math.max(1, notificationShards);
+  }
+
   /**
    * Set the option value.
    * 
@@ -178,6 +466,18 @@ public class EIDSNotifications implements Configurable, EIDSConst
    */
   private void setOptionValue(String option, String value) throws Exception
   {
+    if (option.equalsIgnoreCase(KEY_DEDUPECACHESIZE))
+    {
+      setDedupeCacheSize(Integer.parseInt(value));
+    }
+    if (option.equalsIgnoreCase(KEY_DEDUPEMAXAGEMS))
+    {
+      setDedupeMaxAgeMs(Long.parseLong(value));
+    }
+    if (option.equalsIgnoreCase(KEY_JOURNALSEGMENTSIZE))
+    {
+      setJournalSegmentSize(Long.parseLong(value));
+    }
     if (option.equalsIgnoreCase(KEY_NOTIFICATIONDIR))
     {
       setNotificationDir(new File(value));
@@ -186,6 +486,41 @@ public class EIDSNotifications implements Configurable, EIDSConst
     {
       setNotificationFilePrefix(value);
     }
+    if (option.equalsIgnoreCase(KEY_NOTIFICATIONSHARDS))
+    {
+      setNotificationShards(Integer.parseInt(value));
+    }
+    if (option.equalsIgnoreCase(KEY_TRANSPORT))
+    {
+      setTransport(value);
+    }
+  }
+
+  /**
+   * Set the transport.
+   * 
+   * @param s the transport, either "file" or "journal", or null or empty
+   *          string for the default.
+   * @throws IllegalArgumentException if the transport is not valid.
+   */
+  public void setTransport(String s)
+  {
+    if (s == null || s.isEmpty())
+    {
+      s = TRANSPORT_FILE;
+    }
+    if (TRANSPORT_FILE.equalsIgnoreCase(s))
+    {
+      transport = TRANSPORT_FILE;
+    }
+    else if (TRANSPORT_JOURNAL.equalsIgnoreCase(s))
+    {
+      transport = TRANSPORT_JOURNAL;
+    }
+    else
+    {
+      throw new IllegalArgumentException("invalid transport (" + s + ")");
+    }
   }
 
   @Override
@@ -196,5 +531,10 @@ public class EIDSNotifications implements Configurable, EIDSConst
   @Override
   public void startup() throws Exception
   {
+    if (!isJournalTransport())
+    {
+      // create the shard directories
+      getNotificationPaths();
+    }
   }
 }
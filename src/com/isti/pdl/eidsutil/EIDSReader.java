@@ -2,40 +2,225 @@ package com.isti.pdl.eidsutil;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.ObjectName;
+
+import gov.usgs.earthquake.distribution.Notification;
 import gov.usgs.earthquake.distribution.NotificationReceiver;
 import gov.usgs.util.Config;;
 
 public class EIDSReader extends EIDSNotifications implements Runnable
 {
+  /** The default catch up ratio. */
+  public static final int DEFAULT_CATCHUPRATIO = 4;
+  /** The default claim lease in milliseconds. */
+  public static final long DEFAULT_CLAIMLEASEMS = 60000;
+  /**
+   * The default maximum number of notifications waiting for the receiver with
+   * the virtual executor.
+   */
+  public static final int DEFAULT_MAXINFLIGHT = 10000;
+  /** The default maximum scan interval in milliseconds. */
+  public static final long DEFAULT_SCANMAXMS = 1000;
+  /** The default minimum scan interval in milliseconds. */
+  public static final long DEFAULT_SCANMINMS = 100;
+  /** The fixed executor, a pool of dispatch threads. */
+  public static final String EXECUTOR_FIXED = "fixed";
+  /** The single executor, notifications are dispatched on the watch thread. */
+  public static final String EXECUTOR_SINGLE = "single";
+  /**
+   * The virtual executor, a virtual thread for each notification. This
+   * requires Java 21 or later.
+   */
+  public static final String EXECUTOR_VIRTUAL = "virtual";
+  /**
+   * The auto scan mode, watch events are used and the notification
+   * directories are checked once a minute for files without watch events. The
+   * directories are polled once several checks in a row have found such files
+   * since the watch events are not reliable.
+   */
+  public static final String SCAN_AUTO = "auto";
+  /**
+   * The poll scan mode, the notification directories are polled without watch
+   * events.
+   */
+  public static final String SCAN_POLL = "poll";
+  /** The watch scan mode, only watch events are used. */
+  public static final String SCAN_WATCH = "watch";
+  /**
+   * The backpressure high watermark key. If the high watermark is not
+   * specified or is 0 there is no backpressure. Otherwise the backpressure
+   * file is created when the backlog reaches the high watermark and no more
+   * notifications are dispatched while that many are waiting for the
+   * receiver.
+   */
+  public static final String KEY_BACKPRESSUREHIGHWATERMARK = "backpressureHighWatermark";
+  /**
+   * The backpressure low watermark key. The backpressure file is removed when
+   * the backlog drops to the low watermark, by default half of the high
+   * watermark.
+   */
+  public static final String KEY_BACKPRESSURELOWWATERMARK = "backpressureLowWatermark";
+  /**
+   * The catch up ratio key. While catching up one of the oldest pending files
+   * is processed after this many of the newest, by default 4.
+   */
+  public static final String KEY_CATCHUPRATIO = "catchUpRatio";
+  /**
+   * The catch up threshold key. If the catch up threshold is not specified or
+   * is 0 the pending notification files are always processed oldest first.
+   * Otherwise, such as after an outage, the newest files are processed first
+   * once more than this many files are pending, until the pending files drop
+   * to half of the threshold. This requires the file transport.
+   */
+  public static final String KEY_CATCHUPTHRESHOLD = "catchUpThreshold";
+  /**
+   * The claim lease key. The claims of a node are recovered by the other
+   * nodes once it has not renewed its lease for this many milliseconds.
+   */
+  public static final String KEY_CLAIMLEASEMS = "claimLeaseMs";
+  /**
+   * The dispatch executor key, either "single", "fixed" or "virtual". If the
+   * dispatch executor is not specified "fixed" is used if there is more than
+   * one dispatch thread and "single" otherwise.
+   */
+  public static final String KEY_DISPATCHEXECUTOR = "dispatchExecutor";
+  /**
+   * The dispatch threads key. If the number of dispatch threads is not
+   * specified or is 1 notifications are dispatched on the watch thread.
+   */
+  public static final String KEY_DISPATCHTHREADS = "dispatchThreads";
+  /**
+   * The map threshold key. Notification files at or above this size in bytes
+   * are memory mapped rather than read into a buffer.
+   */
+  public static final String KEY_MAPTHRESHOLD = "mapThreshold";
+  /**
+   * The maximum in flight key. With the virtual executor at most this many
+   * notifications wait for the receiver unless the backpressure high
+   * watermark applies.
+   */
+  public static final String KEY_MAXINFLIGHT = "maxInFlight";
+  /**
+   * The node ID key. If the node ID is specified each notification file is
+   * claimed before it is processed so that several readers, each with a
+   * different node ID, may share the notification directory. This requires
+   * the file transport.
+   */
+  public static final String KEY_NODEID = "nodeId";
+  /**
+   * The priority lanes key. If the priority lanes are specified the pending
+   * notification files are scheduled by product type, see PriorityLanes.
+   */
+  public static final String KEY_PRIORITYLANES = "priorityLanes";
   /**
    * The processed directory key. If the processed directory is not specified
    * files are deleted rather than moved after they are processed.
    */
   public static final String KEY_PROCESSEDDIR = "processedDir";
+  /**
+   * The processed bundle period key. If the processed bundle period is more
+   * than 0 the processed files are appended to compressed bundles in the
+   * processed directory that each cover this many milliseconds rather than
+   * being moved to the processed directory.
+   */
+  public static final String KEY_PROCESSEDBUNDLEMS = "processedBundleMs";
+  /**
+   * The processed retention key. If the processed retention is more than 0
+   * the processed bundles older than this many milliseconds are deleted.
+   */
+  public static final String KEY_PROCESSEDRETENTIONMS = "processedRetentionMs";
+  /**
+   * The maximum scan interval key. The time between polls of the notification
+   * directories grows to this many milliseconds while no files arrive.
+   */
+  public static final String KEY_SCANMAXMS = "scanMaxMs";
+  /**
+   * The minimum scan interval key. The time between polls of the notification
+   * directories drops to this many milliseconds when files arrive.
+   */
+  public static final String KEY_SCANMINMS = "scanMinMs";
+  /**
+   * The scan mode key, either "auto", "poll" or "watch". If the scan mode is
+   * not specified "auto" is used. The notification directories are always
+   * polled when claiming files since files written on other hosts may not
+   * have watch events.
+   */
+  public static final String KEY_SCANMODE = "scanMode";
 
   /** The configuration keys. */
   public static final String[] KEY_VALUES =
-  { KEY_PROCESSEDDIR };
+  { KEY_BACKPRESSUREHIGHWATERMARK, KEY_BACKPRESSURELOWWATERMARK,
+      KEY_CATCHUPRATIO, KEY_CATCHUPTHRESHOLD, KEY_CLAIMLEASEMS,
+      KEY_DISPATCHEXECUTOR, KEY_DISPATCHTHREADS, KEY_MAPTHRESHOLD,
+      KEY_MAXINFLIGHT, KEY_NODEID, KEY_PRIORITYLANES, KEY_PROCESSEDBUNDLEMS, KEY_PROCESSEDDIR,
+      KEY_PROCESSEDRETENTIONMS, KEY_SCANMAXMS, KEY_SCANMINMS, KEY_SCANMODE };
+  /** The time to wait for dispatch capacity before checking for shutdown. */
+  private static final long BACKPRESSURE_WAIT_MS = 1000;
+  /**
+   * The number of files processed while catching up before the new files are
+   * taken so that they are processed next.
+   */
+  private static final int CATCH_UP_BATCH_FILES = 100;
+  /**
+   * The number of notifications for each dispatch thread that may wait for
+   * the receiver when there is no backpressure high watermark and the virtual
+   * executor is not used.
+   */
+  private static final int DISPATCH_PENDING_PER_THREAD = 4;
+  /** The time to wait for dispatched notifications on shutdown. */
+  private static final long DISPATCH_SHUTDOWN_MS = 30000;
+  /** The number of journal records between checkpoints. */
+  private static final int JOURNAL_CHECKPOINT_INTERVAL = 1000;
+  /** The journal poll time in milliseconds in case an event is missed. */
+  private static final long JOURNAL_POLL_MS = 1000;
   /** Logging object. */
   private static final Logger LOGGER = Logger
       .getLogger(EIDSReader.class.getName());
+  /**
+   * The time between the checks for files without watch events in the auto
+   * scan mode in milliseconds.
+   */
+  private static final long MISSED_EVENTS_CHECK_MS = 60000;
+  /**
+   * The number of checks in a row that must find files without watch events
+   * before the auto scan mode polls the notification directories.
+   */
+  private static final int MISSED_EVENTS_CHECKS = 3;
+  /**
+   * The minimum age of a file found by a check in milliseconds for its watch
+   * event to be considered missed rather than not yet taken.
+   */
+  private static final long MISSED_EVENTS_MIN_AGE_MS = 10000;
+  /**
+   * The notification file order, by filename so that the files in the shard
+   * directories are merged in the order they were written.
+   */
+  private static final Comparator<Path> NOTIFICATION_FILE_ORDER = Comparator
+      .comparing(Path::getFileName).thenComparing(Comparator.naturalOrder());
   /* For autonumbering threads. */
   private static int threadInitNumber;
 
@@ -64,18 +249,97 @@ public class EIDSReader extends EIDSNotifications implements Runnable
     return threadInitNumber++;
   }
 
+  /** The archiver or null if the processed files are not bundled. */
+  private volatile NotificationArchiver archiver;
+  /** The backpressure flag. */
+  private volatile boolean backpressure;
+  /** The backpressure high watermark or 0 if none. */
+  private int backpressureHighWatermark;
+  /** The backpressure low watermark or -1 for the default. */
+  private int backpressureLowWatermark = -1;
+  /** The time to next update the backpressure file in milliseconds. */
+  private long backpressureRefreshTime;
+  /** The number of newest files for each oldest file when catching up. */
+  private int catchUpRatio = DEFAULT_CATCHUPRATIO;
+  /** The catch up threshold or 0 if none. */
+  private int catchUpThreshold;
+  /** The number of newest files since the last oldest file when catching up. */
+  private int catchUpTurn;
+  /** The catching up flag. */
+  private volatile boolean catchingUp;
+  /**
+   * The newest update time dispatched for each product key since catching up
+   * started, only used by the watch thread.
+   */
+  private final Map<String, Long> catchUpUpdateTimes = //
+      new HashMap<String, Long>();
+  /** The claim lease in milliseconds. */
+  private long claimLeaseMs = DEFAULT_CLAIMLEASEMS;
+  /** The claims or null if the files are not claimed. */
+  private volatile NotificationClaims claims;
+  /** The dedupe cache or null if none. */
+  private volatile NotificationDedupeCache dedupeCache;
+  /** The dispatch executor or null for the default. */
+  private String dispatchExecutor;
+  /**
+   * The number of notifications that may wait for the receiver when the
+   * backpressure high watermark does not apply.
+   */
+  private int dispatchLimit;
+  /** The dispatcher. */
+  private volatile NotificationDispatcher dispatcher;
+  /** The disposer. */
+  private volatile NotificationDisposer disposer;
+  /** The number of dispatch threads. */
+  private int dispatchThreads = 1;
   /** The file count. */
   private long fileCount;
+  /** The notification file reader. */
+  private final NotificationFileReader fileReader = new NotificationFileReader();
+  /** The files that have been read but not yet disposed of. */
+  private final Set<Path> inFlightFiles = ConcurrentHashMap.newKeySet();
+  /** The maximum number of notifications in flight with virtual threads. */
+  private int maxInFlight = DEFAULT_MAXINFLIGHT;
+  /** The metrics. */
+  private final EIDSReaderMetrics metrics = new EIDSReaderMetrics(this);
+  /** The metrics MBean name or null if not registered. */
+  private ObjectName metricsName;
+  /** The number of checks in a row that found files without watch events. */
+  private int missedEventChecks;
+  /** The node ID or null if none. */
+  private String nodeId;
   /** The filenames. */
   private final List<Path> notificationFiles = new ArrayList<Path>();
-  /** The notification path. */
-  private Path notificationPath;
   /** The notification receiver. */
   private NotificationReceiver notificationReceiver;
+  /** The oldest pending file or null if none, for the metrics. */
+  private volatile Path oldestPendingFile;
+  /** The number of pending files, for the metrics. */
+  private volatile int pendingFileCount;
+  /**
+   * The pending notification files in filename order within each priority
+   * lane and the time each file was detected in nanoseconds.
+   */
+  private PriorityLanes pendingFiles = new PriorityLanes(null,
+      DEFAULT_NOTIFICATIONFILEPREFIX, NOTIFICATION_FILE_ORDER);
+  /** The priority lanes or null if none. */
+  private String priorityLanes;
   /** The processed directory. */
   private File processedDir;
+  /** The processed bundle period in milliseconds or 0 if none. */
+  private long processedBundleMs;
+  /** The processed bundle retention in milliseconds or 0 if none. */
+  private long processedRetentionMs;
   /** The running flag. */
   private volatile boolean running;
+  /** The maximum scan interval in milliseconds. */
+  private long scanMaxMs = DEFAULT_SCANMAXMS;
+  /** The minimum scan interval in milliseconds. */
+  private long scanMinMs = DEFAULT_SCANMINMS;
+  /** The scan mode. */
+  private String scanMode = SCAN_AUTO;
+  /** The flag for watch events that were missed. */
+  private boolean watchEventsMissed;
   /** The watch service thread. */
   private Thread watchServiceThread;
 
@@ -125,293 +389,1677 @@ public class EIDSReader extends EIDSNotifications implements Runnable
   }
 
   /**
-   * Get the log message.
-   * 
-   * @param message the message.
-   * @return the log message.
-   */
-  private String getLogMessage(String message)
-  {
-    return UtilFns.getLogMessage(this, message);
-  }
-
-  /**
-   * Get the notification receiver.
-   * 
-   * @return the notification receiver or null if none.
-   */
-  public NotificationReceiver getNotificationReceiver()
-  {
-    return notificationReceiver;
-  }
-
-  /**
-   * Get the processed directory.
-   * 
-   * @return the processed directory or null if none.
+   * Wait while the number of notifications waiting for the receiver is at the
+   * backpressure high watermark, or at the dispatch limit if there is no
+   * backpressure or the pending files are ordered by priority lane or for
+   * catching up, so that the dispatch queue is bounded.
    */
-  public File getProcessedDir()
-  {
-    return processedDir;
-  }
-
-  private boolean isRunning()
-  {
-    return running;
-  }
-
-  private void processExistingFiles() throws IOException
+  private void awaitDispatchCapacity()
   {
-    long count = 0;
-    notificationFiles.clear();
-    if (notificationPath == null)
+    final NotificationDispatcher d = dispatcher;
+    if (d.isInline())
+    {
+      return;
+    }
+    final int high;
+    final int low;
+    if (backpressureHighWatermark > 0 && priorityLanes == null
+        && catchUpThreshold <= 0)
     {
-      notificationPath = getNotificationDir().toPath();
+      high = backpressureHighWatermark;
+      low = getBackpressureLowWatermark();
     }
-    while (!UtilFns.getNotificationFiles(notificationPath,
-        getNotificationFilePrefix(), notificationFiles).isEmpty())
+    else
     {
-      if (count == 0 && LOGGER.isLoggable(Level.FINE))
-      {
-        LOGGER.fine(getLogMessage("processExistingFiles started"));
-      }
-      count += notificationFiles.size();
-      Collections.sort(notificationFiles);
-      for (Path file : notificationFiles)
+      // the lanes and catching up only order the pending files, so keep the
+      // rest of the backlog out of the dispatch queue
+      high = dispatchLimit;
+      low = high - 1;
+    }
+    if (d.getPending() < high)
+    {
+      return;
+    }
+    try
+    {
+      do
       {
-        processNotificationFile(file);
+        // this also keeps the backpressure file from becoming stale
+        updateBackpressure();
       }
-      notificationFiles.clear();
+      while (isRunning() && !d.awaitPending(low, BACKPRESSURE_WAIT_MS));
     }
-    if (count > 0 && LOGGER.isLoggable(Level.FINE))
+    catch (InterruptedException ex)
     {
-      LOGGER.fine(
-          getLogMessage("processExistingFiles compeleted (" + count + ")"));
+      // let the watch loop see the interrupt
+      Thread.currentThread().interrupt();
     }
   }
 
   /**
-   * Process the notification file.
+   * Check the files found by polling for missed watch events. A file created
+   * while the watch events are taken is found before its event, so only the
+   * older files are counted and the directories are only polled once several
+   * checks in a row have found such files.
    * 
-   * @param file the notification file.
+   * @param files the files found by polling.
    */
-  private void processNotificationFile(Path file)
+  private void checkMissedEvents(List<Path> files)
   {
-    if (!Files.exists(file))
-    {
-      return;
-    }
-    LOGGER.info(getLogMessage(
-        "notification file (" + (++fileCount) + ", " + file + ")"));
-
-    if (notificationReceiver != null)
+    final long time = System.currentTimeMillis() - MISSED_EVENTS_MIN_AGE_MS;
+    int missed = 0;
+    for (Path file : files)
     {
-      // process the notification
-      try (InputStream message = Files.newInputStream(file))
+      try
       {
-        notificationReceiver.receiveNotification(UtilFns.parseXml(message));
+        if (Files.getLastModifiedTime(file).toMillis() < time)
+        {
+          missed++;
+        }
       }
-      catch (Exception ex)
+      catch (IOException ex)
       {
-        LOGGER.log(Level.WARNING,
-            getLogMessage("Error processing notification"), ex);
+        // the file has already been processed
       }
     }
+    if (missed == 0)
+    {
+      missedEventChecks = 0;
+      return;
+    }
+    if (++missedEventChecks < MISSED_EVENTS_CHECKS)
+    {
+      if (LOGGER.isLoggable(Level.FINE))
+        LOGGER.fine(getLogMessage("found " + missed
+            + " notification files without watch events"));
+      return;
+    }
+    watchEventsMissed = true;
+    LOGGER.info(getLogMessage("found " + missed
+        + " notification files without watch events, polling"));
+  }
 
-    if (processedDir == null)
+  /**
+   * Create the dispatch executor and set the dispatch limit.
+   * 
+   * @return the dispatch executor or null to dispatch notifications on the
+   *         watch thread.
+   */
+  private ExecutorService createDispatchExecutor()
+  {
+    final String s = getDispatchExecutor();
+    dispatchLimit = DISPATCH_PENDING_PER_THREAD * dispatchThreads;
+    if (EXECUTOR_VIRTUAL.equals(s))
     {
-      try
-      {
-        Files.delete(file);
-      }
-      catch (NoSuchFileException ex)
-      {
-        LOGGER.info(getLogMessage(
-            "could not delete file (" + file + "), no longer exists"));
-      }
-      catch (Exception ex)
+      final ExecutorService executor = NotificationDispatcher
+          .newVirtualExecutor(getName());
+      if (executor != null)
       {
-        LOGGER.severe(
-            getLogMessage("could not delete file (" + file + "): " + ex));
-        shutDownQuietly();
+        // there is a thread for each notification
+        dispatchLimit = maxInFlight;
+        return executor;
       }
+      LOGGER.warning(getLogMessage(
+          "virtual threads are not supported, using dispatch threads"));
     }
-    else
+    else if (EXECUTOR_SINGLE.equals(s))
     {
-      try
-      {
-        final Path dest = Paths.get(processedDir.toString(),
-            file.getFileName().toString());
-        Files.move(file, dest);
-      }
-      catch (Exception ex)
-      {
-        LOGGER
-            .severe(getLogMessage("could not move file (" + file + "): " + ex));
-        shutDownQuietly();
-      }
+      return null;
     }
+    return NotificationDispatcher.newFixedExecutor(getName(),
+        dispatchThreads);
   }
 
-  @Override
-  public void run()
+  /**
+   * Dispatch the notification to the notification receiver.
+   * 
+   * @param notification the notification.
+   * @param dispatchTime the time the notification was dispatched in
+   *                     nanoseconds.
+   * @param writeTime    the time the notification was written in milliseconds
+   *                     or -1 if not known.
+   */
+  private void dispatchNotification(Notification notification,
+      long dispatchTime, long writeTime)
   {
-    if (LOGGER.isLoggable(Level.FINE))
-      LOGGER.fine(getLogMessage("run started (" + getNotificationDir() + ")"));
-    try
+    final long startTime = System.nanoTime();
+    metrics.recordDispatchLatency(startTime - dispatchTime);
+    if (writeTime >= 0)
     {
-      Object context;
-      processExistingFiles();
-      try (WatchService watchService = FileSystems.getDefault()
-          .newWatchService())
-      {
-        final Path path = getNotificationDir().toPath();
-        final WatchEvent.Kind<?>[] events =
-        { StandardWatchEventKinds.ENTRY_CREATE };
-        final WatchEvent.Modifier[] modifiers = {};
-        path.register(watchService, events, modifiers);
-        for (WatchKey key; isRunning(); key = null)
-        {
-          processExistingFiles();
-          if (LOGGER.isLoggable(Level.FINE))
-            LOGGER.fine(getLogMessage("getting next watch key..."));
-          key = watchService.take();
-          if (LOGGER.isLoggable(Level.FINE))
-            LOGGER.fine(getLogMessage("got watch key, getting events..."));
-          for (WatchEvent<?> event : key.pollEvents())
-          {
-            Kind<?> kind = event.kind();
-            if (kind == StandardWatchEventKinds.OVERFLOW)
-            {
-              if (LOGGER.isLoggable(Level.FINE))
-                LOGGER.fine(getLogMessage("event overflow occurred"));
-              key.reset();
-              processExistingFiles();
-              continue;
-            }
-            context = event.context();
-            if (context instanceof Path)
-            {
-              processNotificationFile(((Path) context));
-            }
-            else
-            {
-              LOGGER.severe(getLogMessage(
-                  "unexpected context (" + context.toString() + ")"));
-              shutDownQuietly();
-            }
-          }
-          if (LOGGER.isLoggable(Level.FINE))
-            LOGGER.fine(getLogMessage("done procesing events"));
-          key.reset();
-        }
-      }
+      metrics.recordHandoffLatency(TimeUnit.MILLISECONDS
+          .toNanos(System.currentTimeMillis() - writeTime));
     }
-    catch (IOException ex)
+    try
     {
-      LOGGER.warning(getLogMessage("run error: " + ex));
+      notificationReceiver.receiveNotification(notification);
     }
-    catch (InterruptedException ex)
+    catch (Exception ex)
     {
+      metrics.error();
+      LOGGER.log(Level.WARNING, getLogMessage("Error processing notification"),
+          ex);
+      // the notification was marked seen when it was parsed, forget it so
+      // that a repeat is not discarded
+      forgetNotification(notification);
     }
-    if (LOGGER.isLoggable(Level.FINE))
-      LOGGER.fine(getLogMessage("run finished (" + getNotificationDir() + ")"));
+    metrics.recordReceiveTime(System.nanoTime() - startTime);
   }
 
   /**
-   * Set the notification receiver.
+   * Dispose of the processed file by queuing it to be deleted, moved to the
+   * processed directory or added to a processed bundle.
    * 
-   * @param notificationReceiver the notification receiver or null if none.
+   * @param file the file.
    */
-  public void setNotificationReceiver(NotificationReceiver notificationReceiver)
+  private void disposeFile(Path file)
   {
-    this.notificationReceiver = notificationReceiver;
+    disposer.dispose(file);
   }
 
   /**
-   * Set the option value.
+   * Get the backlog.
    * 
-   * @param option the option.
-   * @param value  the value.
-   * @throws Exception if configuration exceptions occur.
+   * @return the number of pending and dispatched notifications that have not
+   *         been processed.
    */
-  private void setOptionValue(String option, String value) throws Exception
+  int getBacklog()
   {
-    if (option.equalsIgnoreCase(KEY_PROCESSEDDIR))
-    {
-      setProcessedDir(new File(value));
-    }
+    final NotificationDispatcher d = dispatcher;
+    return pendingFileCount + (d != null ? d.getPending() : 0);
   }
 
   /**
-   * Set the processed directory.
+   * Forget that the notification was seen so that a repeat is not discarded.
    * 
-   * @param processedDir the processed directory or null if none.
+   * @param notification the notification.
    */
-  public void setProcessedDir(File processedDir)
+  private void forgetNotification(Notification notification)
   {
-    if (!processedDir.exists())
-    {
-      processedDir.mkdirs();
-    }
-    if (processedDir.exists())
+    final NotificationDedupeCache cache = dedupeCache;
+    if (cache != null)
     {
-      this.processedDir = processedDir;
+      cache.forget(notification.getProductId());
     }
   }
 
-  @Override
-  public void shutdown() throws Exception
+  /**
+   * Get the backpressure high watermark.
+   * 
+   * @return the backpressure high watermark or 0 if none.
+   */
+  public int getBackpressureHighWatermark()
   {
-    super.shutdown();
-    running = false;
-    final Thread thread;
-    synchronized (this)
-    {
-      thread = watchServiceThread;
-      watchServiceThread = null;
-    }
-    if (thread != null)
-    {
-      synchronized (thread)
-      {
-        thread.interrupt();
-      }
-    }
+    return backpressureHighWatermark;
   }
 
-  private void shutDownQuietly()
+  /**
+   * Get the backpressure low watermark.
+   * 
+   * @return the backpressure low watermark.
+   */
+  public int getBackpressureLowWatermark()
   {
-    try
-    {
-      shutdown();
-    }
-    catch (Exception ex)
+    if (backpressureLowWatermark < 0
+        || backpressureLowWatermark >= backpressureHighWatermark)
     {
+      return backpressureHighWatermark / 2;
     }
+    return backpressureLowWatermark;
   }
 
-  @Override
-  public void startup() throws Exception
+  /**
+   * Get the catch up ratio.
+   * 
+   * @return the number of newest files for each oldest file when catching up.
+   */
+  public int getCatchUpRatio()
   {
-    running = true;
-    final Thread thread;
-    synchronized (this)
-    {
-      if (watchServiceThread == null)
-      {
-        thread = new Thread(this, getName() + nextThreadNum());
-        watchServiceThread = thread;
-      }
-      else
-      {
-        thread = null;
-      }
-    }
-    if (thread != null)
-    {
-      thread.start();
-    }
-    super.startup();
+    return catchUpRatio;
+  }
+
+  /**
+   * Get the catch up threshold.
+   * 
+   * @return the catch up threshold or 0 if none.
+   */
+  public int getCatchUpThreshold()
+  {
+    return catchUpThreshold;
+  }
+
+  /**
+   * Get the claim lease.
+   * 
+   * @return the claim lease in milliseconds.
+   */
+  public long getClaimLeaseMs()
+  {
+    return claimLeaseMs;
+  }
+
+  /**
+   * Get the dedupe cache.
+   * 
+   * @return the dedupe cache or null if none.
+   */
+  public NotificationDedupeCache getDedupeCache()
+  {
+    return dedupeCache;
+  }
+
+  /**
+   * Get the dispatch executor.
+   * 
+   * @return the dispatch executor, either "single", "fixed" or "virtual".
+   */
+  public String getDispatchExecutor()
+  {
+    String s = dispatchExecutor;
+    if (s == null)
+    {
+      s = dispatchThreads > 1 ? EXECUTOR_FIXED : EXECUTOR_SINGLE;
+    }
+    return s;
+  }
+
+  /**
+   * Get the number of dispatch threads.
+   * 
+   * @return the number of dispatch threads.
+   */
+  public int getDispatchThreads()
+  {
+    return dispatchThreads;
+  }
+
+  /**
+   * Get the dispose backlog.
+   * 
+   * @return the number of processed files that have not been disposed of.
+   */
+  int getDisposeBacklog()
+  {
+    final NotificationDisposer d = disposer;
+    final NotificationArchiver a = archiver;
+    return (d != null ? d.getBacklog() : 0) + (a != null ? a.getBacklog() : 0);
+  }
+
+  /**
+   * Get the log message.
+   * 
+   * @param message the message.
+   * @return the log message.
+   */
+  private String getLogMessage(String message)
+  {
+    return UtilFns.getLogMessage(this, message);
+  }
+
+  /**
+   * Get the maximum number of notifications in flight with the virtual
+   * executor.
+   * 
+   * @return the maximum number of notifications in flight.
+   */
+  public int getMaxInFlight()
+  {
+    return maxInFlight;
+  }
+
+  /**
+   * Get the metrics.
+   * 
+   * @return the metrics.
+   */
+  public EIDSReaderMetrics getMetrics()
+  {
+    return metrics;
+  }
+
+  /**
+   * Get the time the file was written.
+   * 
+   * @param file the file.
+   * @return the time in milliseconds or -1 if not known.
+   */
+  private long getNotificationTime(Path file)
+  {
+    long time = UtilFns.getNotificationTime(file.getFileName().toString(),
+        getNotificationFilePrefix());
+    if (time < 0)
+    {
+      time = file.toFile().lastModified();
+      if (time == 0)
+      {
+        time = -1;
+      }
+    }
+    return time;
+  }
+
+  /**
+   * Get the node ID.
+   * 
+   * @return the node ID or null if none.
+   */
+  public String getNodeId()
+  {
+    return nodeId;
+  }
+
+  /**
+   * Get the notification file reader.
+   * 
+   * @return the notification file reader.
+   */
+  public NotificationFileReader getNotificationFileReader()
+  {
+    return fileReader;
+  }
+
+  /**
+   * Get the notification receiver.
+   * 
+   * @return the notification receiver or null if none.
+   */
+  public NotificationReceiver getNotificationReceiver()
+  {
+    return notificationReceiver;
+  }
+
+  /**
+   * Get the time the oldest pending notification file was written.
+   * 
+   * @return the time in milliseconds or -1 if none or not known.
+   */
+  long getOldestPendingTime()
+  {
+    long oldest = -1;
+    long time;
+    final Path file = oldestPendingFile;
+    if (file != null)
+    {
+      oldest = getNotificationTime(file);
+    }
+    for (Path inFlightFile : inFlightFiles)
+    {
+      time = getNotificationTime(inFlightFile);
+      if (time >= 0 && (oldest < 0 || time < oldest))
+      {
+        oldest = time;
+      }
+    }
+    return oldest;
+  }
+
+  /**
+   * Get the priority lanes.
+   * 
+   * @return the priority lanes or null if none.
+   */
+  public String getPriorityLanes()
+  {
+    return priorityLanes;
+  }
+
+  /**
+   * Get the processed bundle period.
+   * 
+   * @return the processed bundle period in milliseconds or 0 if none.
+   */
+  public long getProcessedBundleMs()
+  {
+    return processedBundleMs;
+  }
+
+  /**
+   * Get the processed directory.
+   * 
+   * @return the processed directory or null if none.
+   */
+  public File getProcessedDir()
+  {
+    return processedDir;
+  }
+
+  /**
+   * Get the processed bundle retention.
+   * 
+   * @return the processed bundle retention in milliseconds or 0 if none.
+   */
+  public long getProcessedRetentionMs()
+  {
+    return processedRetentionMs;
+  }
+
+  /**
+   * Get the maximum scan interval.
+   * 
+   * @return the maximum scan interval in milliseconds.
+   */
+  public long getScanMaxMs()
+  {
+    return scanMaxMs;
+  }
+
+  /**
+   * Get the minimum scan interval.
+   * 
+   * @return the minimum scan interval in milliseconds.
+   */
+  public long getScanMinMs()
+  {
+    return scanMinMs;
+  }
+
+  /**
+   * Get the scan mode.
+   * 
+   * @return the scan mode, either "auto", "poll" or "watch".
+   */
+  public String getScanMode()
+  {
+    return scanMode;
+  }
+
+  /**
+   * Determine if the notification is a repeat of one already seen.
+   * 
+   * @param notification the notification.
+   * @return true if the notification should be discarded, false otherwise.
+   */
+  private boolean isDuplicate(Notification notification)
+  {
+    final NotificationDedupeCache cache = dedupeCache;
+    if (cache == null || !cache.isDuplicate(notification.getProductId()))
+    {
+      return false;
+    }
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine(getLogMessage("discarding repeated notification ("
+          + notification.getProductId() + ")"));
+    return true;
+  }
+
+  /**
+   * Determine if the file is waiting to be disposed of.
+   * 
+   * @param file the file.
+   * @return true if the file is waiting to be disposed of.
+   */
+  private boolean isDisposePending(Path file)
+  {
+    final NotificationDisposer d = disposer;
+    final NotificationArchiver a = archiver;
+    return (d != null && d.isPending(file)) || (a != null && a.isPending(file));
+  }
+
+  /**
+   * Determine if there is backpressure.
+   * 
+   * @return true if the backlog has reached the high watermark and has not yet
+   *         dropped to the low watermark.
+   */
+  public boolean isBackpressure()
+  {
+    return backpressure;
+  }
+
+  /**
+   * Determine if the reader is catching up.
+   * 
+   * @return true if the pending files have exceeded the catch up threshold and
+   *         have not yet dropped to half of the threshold.
+   */
+  public boolean isCatchingUp()
+  {
+    return catchingUp;
+  }
+
+  private boolean isRunning()
+  {
+    return running;
+  }
+
+  /**
+   * Determine if a newer update of the product has been dispatched since
+   * catching up started. Since the newest files are processed first the older
+   * updates would otherwise be sent after the newer ones.
+   * 
+   * @param notification the notification.
+   * @return true if the notification should be discarded, false otherwise.
+   */
+  private boolean isSuperseded(Notification notification)
+  {
+    final long updateTime = notification.getProductId().getUpdateTime()
+        .getTime();
+    final Long newest = catchUpUpdateTimes.merge(
+        UtilFns.getProductKey(notification), updateTime, Math::max);
+    if (newest <= updateTime)
+    {
+      return false;
+    }
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine(getLogMessage("discarding superseded notification ("
+          + notification.getProductId() + ")"));
+    return true;
+  }
+
+  /**
+   * Process the available journal records.
+   * 
+   * @param journalReader the journal reader.
+   * @throws IOException          if an I/O error occurs.
+   * @throws InterruptedException if interrupted.
+   */
+  private void processJournal(JournalReader journalReader)
+      throws IOException, InterruptedException
+  {
+    long count = 0;
+    byte[] record;
+    while (isRunning() && (record = journalReader.readRecord()) != null)
+    {
+      metrics.fileRead();
+      LOGGER.info(getLogMessage("notification record (" + (++fileCount) + ")"));
+      if (notificationReceiver != null)
+      {
+        // process the notification
+        try
+        {
+          final long parseTime = System.nanoTime();
+          final Notification notification = UtilFns
+              .parseNotification(ByteBuffer.wrap(record));
+          final long dispatchTime = System.nanoTime();
+          // the record is detected when it is read and the write time is not
+          // known, so only the parse latency is recorded
+          metrics.recordParseLatency(dispatchTime - parseTime);
+          if (!isDuplicate(notification))
+          {
+            awaitDispatchCapacity();
+            dispatcher.dispatch(UtilFns.getProductKey(notification),
+                () -> dispatchNotification(notification, dispatchTime, -1));
+          }
+        }
+        catch (Exception ex)
+        {
+          metrics.error();
+          LOGGER.log(Level.WARNING,
+              getLogMessage("Error processing notification"), ex);
+        }
+      }
+      updateBackpressure();
+      if (++count % JOURNAL_CHECKPOINT_INTERVAL == 0)
+      {
+        // only checkpoint records that have been dispatched
+        dispatcher.awaitIdle();
+        journalReader.checkpoint();
+      }
+    }
+    updateBackpressure();
+    final List<Path> completedSegments = journalReader.getCompletedSegments();
+    if (count % JOURNAL_CHECKPOINT_INTERVAL != 0
+        || !completedSegments.isEmpty())
+    {
+      dispatcher.awaitIdle();
+      journalReader.checkpoint();
+    }
+    // remove the segments after the checkpoint no longer refers to them
+    for (Path segment : completedSegments)
+    {
+      disposeFile(segment);
+    }
+    completedSegments.clear();
+  }
+
+  /**
+   * Process the pending notification files.
+   */
+  private void processPendingFiles()
+  {
+    long count = 0;
+    Map.Entry<Path, Long> entry;
+    while (isRunning())
+    {
+      updateCatchUp();
+      if (catchingUp && count >= CATCH_UP_BATCH_FILES)
+      {
+        break; // take the new files so that they are processed next
+      }
+      if ((entry = pollPendingFile()) == null)
+      {
+        break;
+      }
+      updatePendingMetrics();
+      updateBackpressure();
+      if (count++ == 0 && LOGGER.isLoggable(Level.FINE))
+      {
+        LOGGER.fine(getLogMessage("processPendingFiles started ("
+            + (pendingFiles.size() + 1) + ")"));
+      }
+      processNotificationFile(entry.getKey(), entry.getValue());
+    }
+    updatePendingMetrics();
+    updateBackpressure();
+    updateCatchUp();
+    if (count > 0 && LOGGER.isLoggable(Level.FINE))
+    {
+      LOGGER.fine(
+          getLogMessage("processPendingFiles completed (" + count + ")"));
+    }
+  }
+
+  /**
+   * Process the notification file.
+   * 
+   * @param pendingFile the notification file.
+   * @param detectTime  the time the file was detected in nanoseconds.
+   */
+  private void processNotificationFile(Path pendingFile, long detectTime)
+  {
+    final NotificationClaims c = claims;
+    final Path file;
+    if (c != null)
+    {
+      // claim the file so that no other reader processes it
+      file = c.claim(pendingFile);
+      if (file == null)
+      {
+        return;
+      }
+    }
+    else
+    {
+      file = pendingFile;
+    }
+    // a file may be found by both a scan and a watch event
+    if (isDisposePending(file) || !inFlightFiles.add(file))
+    {
+      return; // already being dispatched
+    }
+    final long writeTime = UtilFns.getNotificationTime(
+        file.getFileName().toString(), getNotificationFilePrefix());
+    if (writeTime >= 0)
+    {
+      // the write time is from the filename so use the wall clock
+      metrics.recordWriteToDetectLatency(
+          TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - writeTime)
+              - (System.nanoTime() - detectTime));
+    }
+    ByteBuffer buffer = null;
+    try
+    {
+      buffer = fileReader.read(file);
+    }
+    catch (NoSuchFileException ex)
+    {
+      inFlightFiles.remove(file);
+      return;
+    }
+    catch (IOException ex)
+    {
+      metrics.error();
+      LOGGER.log(Level.WARNING, getLogMessage("Error reading notification"),
+          ex);
+    }
+    metrics.fileRead();
+    LOGGER.info(getLogMessage(
+        "notification file (" + (++fileCount) + ", " + file + ")"));
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine(getLogMessage("read " + fileReader.getLastBytesRead()
+          + " bytes with " + fileReader.getLastSyscalls() + " syscalls ("
+          + fileReader.getTotalBytesRead() + " bytes, "
+          + fileReader.getTotalSyscalls() + " syscalls, "
+          + fileReader.getTotalFiles() + " files total)"));
+
+    Notification notification = null;
+    if (notificationReceiver != null && buffer != null)
+    {
+      // parse the notification before the buffer is reused
+      final long parseTime = System.nanoTime();
+      try
+      {
+        notification = UtilFns.parseNotification(buffer);
+      }
+      catch (Exception ex)
+      {
+        metrics.error();
+        LOGGER.log(Level.WARNING,
+            getLogMessage("Error processing notification"), ex);
+      }
+      metrics.recordParseLatency(System.nanoTime() - parseTime);
+    }
+    final long dispatchTime = System.nanoTime();
+    if (notification == null || isDuplicate(notification))
+    {
+      disposeFile(file);
+      inFlightFiles.remove(file);
+      return;
+    }
+
+    if ((catchingUp || !catchUpUpdateTimes.isEmpty())
+        && isSuperseded(notification))
+    {
+      disposeFile(file);
+      inFlightFiles.remove(file);
+      return;
+    }
+
+    // process the notification
+    metrics.recordDetectToParseLatency(dispatchTime - detectTime);
+    awaitDispatchCapacity();
+    final Notification n = notification;
+    dispatcher.dispatch(UtilFns.getProductKey(n), () -> {
+      if (c == null || c.isClaimed(file))
+      {
+        dispatchNotification(n, dispatchTime, writeTime);
+        disposeFile(file);
+      }
+      else
+      {
+        // another reader found that the lease expired and recovered the file
+        LOGGER.warning(getLogMessage("claim lost, not dispatching (" + file
+            + ")"));
+        forgetNotification(n);
+      }
+      inFlightFiles.remove(file);
+    });
+  }
+
+  @Override
+  public void run()
+  {
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine(getLogMessage("run started (" + getNotificationDir() + ")"));
+    pendingFiles = new PriorityLanes(priorityLanes,
+        getNotificationFilePrefix(), NOTIFICATION_FILE_ORDER);
+    dispatcher = new NotificationDispatcher(getName(),
+        createDispatchExecutor());
+    if (processedDir != null && processedBundleMs > 0)
+    {
+      archiver = new NotificationArchiver(getName(), processedDir,
+          getNotificationFilePrefix(), processedBundleMs,
+          processedRetentionMs);
+      archiver.startup();
+    }
+    if (nodeId != null && !isJournalTransport())
+    {
+      claims = new NotificationClaims(getName(), this, nodeId, claimLeaseMs,
+          metrics);
+    }
+    final NotificationClaims c = claims;
+    disposer = new NotificationDisposer(getName(),
+        c != null ? c.getDispatchedLogFile() : getDispatchedLogFile(),
+        processedDir, archiver, metrics);
+    try
+    {
+      // dispose of the files dispatched before the last shutdown
+      disposer.startup();
+      if (c != null)
+      {
+        c.startup(disposer);
+      }
+      // remove the backpressure file left by a previous run
+      Files.deleteIfExists(getBackpressureFile().toPath());
+      if (isJournalTransport())
+      {
+        watchJournal();
+      }
+      else
+      {
+        watchNotificationFiles();
+      }
+    }
+    catch (IOException ex)
+    {
+      LOGGER.warning(getLogMessage("run error: " + ex));
+    }
+    catch (InterruptedException ex)
+    {
+    }
+    try
+    {
+      // clear the interrupt and wait for the dispatched notifications
+      Thread.interrupted();
+      dispatcher.shutdown(DISPATCH_SHUTDOWN_MS);
+      // close the bundle after the dispatched files are disposed of
+      disposer.shutdown();
+      if (c != null)
+      {
+        c.shutdown();
+      }
+      final NotificationArchiver a = archiver;
+      if (a != null)
+      {
+        a.shutdown();
+      }
+    }
+    catch (InterruptedException ex)
+    {
+    }
+    setBackpressure(false);
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine(getLogMessage("run finished (" + getNotificationDir() + ")"));
+  }
+
+  /**
+   * Poll the notification directories that may have changed and add the new
+   * notification files to the pending files.
+   * 
+   * @param poller   the directory poller.
+   * @param watching true if watch events are also used.
+   * @throws IOException if an I/O error occurs.
+   */
+  private void pollNotificationFiles(DirectoryPoller poller, boolean watching)
+      throws IOException
+  {
+    final List<Path> added = watching && claims == null && !watchEventsMissed
+        ? new ArrayList<Path>() : null;
+    int found = 0;
+    for (Path path : poller.getChangedDirs(new ArrayList<Path>()))
+    {
+      found += scanNotificationFiles(path, added);
+    }
+    poller.polled(found);
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine(getLogMessage("polled notification directories (" + found
+          + " new files, next poll in " + poller.getInterval() + " ms)"));
+    if (added != null)
+    {
+      checkMissedEvents(added);
+    }
+  }
+
+  /**
+   * Remove the next pending file. While catching up the newest files are
+   * processed first with one of the oldest files after every catchUpRatio of
+   * the newest so that the older files still drain.
+   * 
+   * @return the file and the time it was detected or null if none.
+   */
+  private Map.Entry<Path, Long> pollPendingFile()
+  {
+    if (!catchingUp)
+    {
+      return pendingFiles.pollFirstEntry();
+    }
+    if (catchUpTurn >= catchUpRatio)
+    {
+      catchUpTurn = 0;
+      return pendingFiles.pollFirstEntry();
+    }
+    catchUpTurn++;
+    return pendingFiles.pollLastEntry();
+  }
+
+  /**
+   * Register the metrics MBean.
+   */
+  private void registerMetrics()
+  {
+    try
+    {
+      final ObjectName name = UtilFns.registerMBean(metrics,
+          EIDSReader.class.getSimpleName(), getName());
+      synchronized (this)
+      {
+        metricsName = name;
+      }
+    }
+    catch (Exception ex)
+    {
+      LOGGER.warning(getLogMessage("could not register metrics: " + ex));
+    }
+  }
+
+  /**
+   * Scan the notification or shard directory and add the notification files
+   * to the pending files. This is only needed at startup and after the watch
+   * events have overflowed.
+   * 
+   * @param path  the notification or shard path.
+   * @param added the list for the files added to the pending files or null
+   *              if not needed.
+   * @return the number of files added to the pending files.
+   * @throws IOException if an I/O error occurs.
+   */
+  private int scanNotificationFiles(Path path, List<Path> added)
+      throws IOException
+  {
+    final long detectTime = System.nanoTime();
+    int count = 0;
+    notificationFiles.clear();
+    UtilFns.getNotificationFiles(path, getNotificationFilePrefix(),
+        notificationFiles);
+    if (!notificationFiles.isEmpty())
+    {
+      // a file renamed while the directory is listed may be missed while
+      // newer files are not, so list again and only keep the files up to the
+      // newest file from the first listing, the newer files are found later
+      // by a watch event or the next scan
+      final Path newest = Collections.max(notificationFiles);
+      notificationFiles.clear();
+      UtilFns.getNotificationFiles(path, getNotificationFilePrefix(),
+          notificationFiles);
+      for (Path file : notificationFiles)
+      {
+        // skip the files that are still being dispatched or archived
+        if (file.compareTo(newest) <= 0 && !inFlightFiles.contains(file)
+            && !isDisposePending(file)
+            && pendingFiles.putIfAbsent(file, detectTime) == null)
+        {
+          count++;
+          if (added != null)
+          {
+            added.add(file);
+          }
+        }
+      }
+      notificationFiles.clear();
+    }
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine(getLogMessage(
+          "scanned notification files (" + pendingFiles.size() + " pending)"));
+    return count;
+  }
+
+  /**
+   * Set the backpressure.
+   * 
+   * @param b true to create the backpressure file, false to remove it.
+   */
+  private void setBackpressure(boolean b)
+  {
+    final long time = System.currentTimeMillis();
+    if (backpressure == b && (!b || time < backpressureRefreshTime))
+    {
+      return;
+    }
+    final Path file = getBackpressureFile().toPath();
+    if (backpressure == b)
+    {
+      // the writer ignores a backpressure file that is not updated
+      backpressureRefreshTime = time + BACKPRESSURE_REFRESH_MS;
+      try
+      {
+        Files.setLastModifiedTime(file, FileTime.fromMillis(time));
+      }
+      catch (IOException ex)
+      {
+        LOGGER.warning(getLogMessage("could not update backpressure file ("
+            + file + "): " + ex));
+      }
+      return;
+    }
+    backpressure = b;
+    try
+    {
+      if (b)
+      {
+        backpressureRefreshTime = time + BACKPRESSURE_REFRESH_MS;
+        if (!Files.exists(file))
+        {
+          Files.createFile(file);
+        }
+      }
+      else
+      {
+        Files.deleteIfExists(file);
+      }
+    }
+    catch (IOException ex)
+    {
+      LOGGER.warning(getLogMessage("could not update backpressure file ("
+          + file + "): " + ex));
+    }
+    LOGGER.info(getLogMessage("backpressure " + (b ? "on" : "off")
+        + " (backlog " + getBacklog() + ")"));
+  }
+
+  /**
+   * Set the backpressure high watermark. This must be set before startup.
+   * 
+   * @param backpressureHighWatermark the backpressure high watermark or 0 if
+   *                                  none.
+   */
+  public void setBackpressureHighWatermark(int backpressureHighWatermark)
+  {
+    this.backpressureHighWatermark = Math.max(0, backpressureHighWatermark);
+  }
+
+  /**
+   * Set the backpressure low watermark. This must be set before startup.
+   * 
+   * @param backpressureLowWatermark the backpressure low watermark or -1 for
+   *                                 half of the high watermark.
+   */
+  public void setBackpressureLowWatermark(int backpressureLowWatermark)
+  {
+    this.backpressureLowWatermark = backpressureLowWatermark;
+  }
+
+  /**
+   * Set the catch up ratio. This must be set before startup.
+   * 
+   * @param catchUpRatio the number of newest files for each oldest file when
+   *                     catching up.
+   * @throws IllegalArgumentException if the catch up ratio is less than 1.
+   */
+  public void setCatchUpRatio(int catchUpRatio)
+  {
+    if (catchUpRatio < 1)
+    {
+      throw new IllegalArgumentException(
+          "invalid catch up ratio (" + catchUpRatio + ")");
+    }
+    this.catchUpRatio = catchUpRatio;
+  }
+
+  /**
+   * Set the catch up threshold. This must be set before startup.
+   * 
+   * @param catchUpThreshold the catch up threshold or 0 if none.
+   */
+  public void setCatchUpThreshold(int catchUpThreshold)
+  {
+    this.catchUpThreshold = Math.max(0, catchUpThreshold);
+  }
+
+  /**
+   * Set the claim lease. This must be set before startup.
+   * 
+   * @param claimLeaseMs the claim lease in milliseconds.
+   */
+  public void setClaimLeaseMs(long claimLeaseMs)
+  {
+    this.claimLeaseMs = Math.max(1, claimLeaseMs);
+  }
+
+  /**
+   * Set the dispatch executor. This must be set before startup.
+   * 
+   * @param s the dispatch executor, either "single", "fixed" or "virtual", or
+   *          null or empty string for the default.
+   * @throws IllegalArgumentException if the dispatch executor is not valid.
+   */
+  public void setDispatchExecutor(String s)
+  {
+    if (s == null || s.isEmpty())
+    {
+      dispatchExecutor = null;
+    }
+    else if (EXECUTOR_SINGLE.equalsIgnoreCase(s))
+    {
+      dispatchExecutor = EXECUTOR_SINGLE;
+    }
+    else if (EXECUTOR_FIXED.equalsIgnoreCase(s))
+    {
+      dispatchExecutor = EXECUTOR_FIXED;
+    }
+    else if (EXECUTOR_VIRTUAL.equalsIgnoreCase(s))
+    {
+      dispatchExecutor = EXECUTOR_VIRTUAL;
+    }
+    else
+    {
+      throw new IllegalArgumentException(
+          "invalid dispatch executor (" + s + ")");
+    }
+  }
+
+  /**
+   * Set the number of dispatch threads. This must be set before startup.
+   * 
+   * @param dispatchThreads the number of dispatch threads or 1 to dispatch
+   *                        notifications on the watch thread unless the
+   *                        dispatch executor is "fixed".
+   */
+  public void setDispatchThreads(int dispatchThreads)
+  {
+    this.dispatchThreads = Math.max(1, dispatchThreads);
+  }
+
+  /**
+   * Set the maximum number of notifications in flight with the virtual
+   * executor. This must be set before startup.
+   * 
+   * @param maxInFlight the maximum number of notifications waiting for the
+   *                    receiver.
+   * @throws IllegalArgumentException if the maximum is less than 1.
+   */
+  public void setMaxInFlight(int maxInFlight)
+  {
+    if (maxInFlight < 1)
+    {
+      throw new IllegalArgumentException(
+          "invalid max in flight (" + maxInFlight + ")");
+    }
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Set the node ID. This must be set before startup.
+   * 
+   * @param s the node ID, which must be unique for the readers sharing the
+   *          notification directory, or null or empty string if the
+   *          notification files are not claimed.
+   */
+  public void setNodeId(String s)
+  {
+    nodeId = s == null || s.isEmpty() ? null : s;
+  }
+
+  /**
+   * Set the notification receiver.
+   * 
+   * @param notificationReceiver the notification receiver or null if none.
+   */
+  public void setNotificationReceiver(NotificationReceiver notificationReceiver)
+  {
+    this.notificationReceiver = notificationReceiver;
+  }
+
+  /**
+   * Set the option value.
+   * 
+   * @param option the option.
+   * @param value  the value.
+   * @throws Exception if configuration exceptions occur.
+   */
+  private void setOptionValue(String option, String value) throws Exception
+  {
+    if (option.equalsIgnoreCase(KEY_BACKPRESSUREHIGHWATERMARK))
+    {
+      setBackpressureHighWatermark(Integer.parseInt(value));
+    }
+    if (option.equalsIgnoreCase(KEY_BACKPRESSURELOWWATERMARK))
+    {
+      setBackpressureLowWatermark(Integer.parseInt(value));
+    }
+    if (option.equalsIgnoreCase(KEY_CATCHUPRATIO))
+    {
+      setCatchUpRatio(Integer.parseInt(value));
+    }
+    if (option.equalsIgnoreCase(KEY_CATCHUPTHRESHOLD))
+    {
+      setCatchUpThreshold(Integer.parseInt(value));
+    }
+    if (option.equalsIgnoreCase(KEY_CLAIMLEASEMS))
+    {
+      setClaimLeaseMs(Long.parseLong(value));
+    }
+    if (option.equalsIgnoreCase(KEY_DISPATCHEXECUTOR))
+    {
+      setDispatchExecutor(value);
+    }
+    if (option.equalsIgnoreCase(KEY_DISPATCHTHREADS))
+    {
+      setDispatchThreads(Integer.parseInt(value));
+    }
+    if (option.equalsIgnoreCase(KEY_MAPTHRESHOLD))
+    {
+      fileReader.setMapThreshold(Long.parseLong(value));
+    }
+    if (option.equalsIgnoreCase(KEY_MAXINFLIGHT))
+    {
+      setMaxInFlight(Integer.parseInt(value));
+    }
+    if (option.equalsIgnoreCase(KEY_NODEID))
+    {
+      setNodeId(value);
+    }
+    if (option.equalsIgnoreCase(KEY_PRIORITYLANES))
+    {
+      setPriorityLanes(value);
+    }
+    if (option.equalsIgnoreCase(KEY_PROCESSEDBUNDLEMS))
+    {
+      setProcessedBundleMs(Long.parseLong(value));
+    }
+    if (option.equalsIgnoreCase(KEY_PROCESSEDDIR))
+    {
+      setProcessedDir(new File(value));
+    }
+    if (option.equalsIgnoreCase(KEY_PROCESSEDRETENTIONMS))
+    {
+      setProcessedRetentionMs(Long.parseLong(value));
+    }
+    if (option.equalsIgnoreCase(KEY_SCANMAXMS))
+    {
+      setScanMaxMs(Long.parseLong(value));
+    }
+    if (option.equalsIgnoreCase(KEY_SCANMINMS))
+    {
+      setScanMinMs(Long.parseLong(value));
+    }
+    if (option.equalsIgnoreCase(KEY_SCANMODE))
+    {
+      setScanMode(value);
+    }
+  }
+
+  /**
+   * Set the priority lanes. This must be set before startup.
+   * 
+   * @param s the priority lanes, see PriorityLanes, or null or empty string
+   *          to process the files in filename order.
+   * @throws IllegalArgumentException if the priority lanes are not valid.
+   */
+  public void setPriorityLanes(String s)
+  {
+    if (s == null || s.trim().isEmpty())
+    {
+      priorityLanes = null;
+      return;
+    }
+    // validate the priority lanes
+    new PriorityLanes(s, getNotificationFilePrefix(), NOTIFICATION_FILE_ORDER);
+    priorityLanes = s;
+  }
+
+  /**
+   * Set the processed bundle period. This must be set before startup.
+   * 
+   * @param processedBundleMs the processed bundle period in milliseconds or 0
+   *                          to move each processed file to the processed
+   *                          directory.
+   */
+  public void setProcessedBundleMs(long processedBundleMs)
+  {
+    this.processedBundleMs = Math.max(0, processedBundleMs);
+  }
+
+  /**
+   * Set the processed directory.
+   * 
+   * @param processedDir the processed directory or null if none.
+   */
+  public void setProcessedDir(File processedDir)
+  {
+    if (!processedDir.exists())
+    {
+      processedDir.mkdirs();
+    }
+    if (processedDir.exists())
+    {
+      this.processedDir = processedDir;
+    }
+  }
+
+  /**
+   * Set the processed bundle retention. This must be set before startup.
+   * 
+   * @param processedRetentionMs the processed bundle retention in
+   *                             milliseconds or 0 to keep all bundles.
+   */
+  public void setProcessedRetentionMs(long processedRetentionMs)
+  {
+    this.processedRetentionMs = Math.max(0, processedRetentionMs);
+  }
+
+  /**
+   * Set the maximum scan interval. This must be set before startup.
+   * 
+   * @param scanMaxMs the maximum scan interval in milliseconds.
+   */
+  public void setScanMaxMs(long scanMaxMs)
+  {
+    this.scanMaxMs = Math.max(1, scanMaxMs);
+  }
+
+  /**
+   * Set the minimum scan interval. This must be set before startup.
+   * 
+   * @param scanMinMs the minimum scan interval in milliseconds.
+   */
+  public void setScanMinMs(long scanMinMs)
+  {
+    this.scanMinMs = Math.max(1, scanMinMs);
+  }
+
+  /**
+   * Set the scan mode. This must be set before startup.
+   * 
+   * @param s the scan mode, either "auto", "poll" or "watch", or null or
+   *          empty string for the default.
+   * @throws IllegalArgumentException if the scan mode is not valid.
+   */
+  public void setScanMode(String s)
+  {
+    if (s == null || s.isEmpty() || SCAN_AUTO.equalsIgnoreCase(s))
+    {
+      scanMode = SCAN_AUTO;
+    }
+    else if (SCAN_POLL.equalsIgnoreCase(s))
+    {
+      scanMode = SCAN_POLL;
+    }
+    else if (SCAN_WATCH.equalsIgnoreCase(s))
+    {
+      scanMode = SCAN_WATCH;
+    }
+    else
+    {
+      throw new IllegalArgumentException("invalid scan mode (" + s + ")");
+    }
+  }
+
+  @Override
+  public void shutdown() throws Exception
+  {
+    super.shutdown();
+    running = false;
+    final Thread thread;
+    final ObjectName name;
+    synchronized (this)
+    {
+      thread = watchServiceThread;
+      watchServiceThread = null;
+      name = metricsName;
+      metricsName = null;
+    }
+    if (name != null)
+    {
+      try
+      {
+        UtilFns.unregisterMBean(name);
+      }
+      catch (Exception ex)
+      {
+        LOGGER.warning(getLogMessage("could not unregister metrics: " + ex));
+      }
+    }
+    if (thread != null)
+    {
+      synchronized (thread)
+      {
+        thread.interrupt();
+      }
+    }
+  }
+
+  private void shutDownQuietly()
+  {
+    try
+    {
+      shutdown();
+    }
+    catch (Exception ex)
+    {
+    }
+  }
+
+  @Override
+  public void startup() throws Exception
+  {
+    running = true;
+    final Thread thread;
+    synchronized (this)
+    {
+      if (watchServiceThread == null)
+      {
+        dedupeCache = createDedupeCache();
+        thread = new Thread(this, getName() + nextThreadNum());
+        watchServiceThread = thread;
+      }
+      else
+      {
+        thread = null;
+      }
+    }
+    if (thread != null)
+    {
+      registerMetrics();
+      thread.start();
+    }
+    super.startup();
+  }
+
+  /**
+   * Update the backpressure from the backlog. This is called on the watch
+   * thread.
+   */
+  private void updateBackpressure()
+  {
+    if (backpressureHighWatermark <= 0)
+    {
+      return;
+    }
+    final int backlog = getBacklog();
+    if (backlog >= backpressureHighWatermark)
+    {
+      setBackpressure(true);
+    }
+    else if (backlog <= getBackpressureLowWatermark())
+    {
+      setBackpressure(false);
+    }
+  }
+
+  /**
+   * Update the catch up mode from the pending files. This is called on the
+   * watch thread.
+   */
+  private void updateCatchUp()
+  {
+    if (catchUpThreshold <= 0)
+    {
+      return;
+    }
+    final int pending = pendingFiles.size();
+    if (!catchingUp && pending > catchUpThreshold)
+    {
+      catchingUp = true;
+      catchUpTurn = 0;
+      LOGGER.info(getLogMessage("catching up, processing the newest of "
+          + pending + " pending files first"));
+    }
+    else if (catchingUp && pending <= catchUpThreshold / 2)
+    {
+      catchingUp = false;
+      LOGGER.info(getLogMessage(
+          "caught up, processing the " + pending + " pending files in order"));
+    }
+    else if (!catchingUp && pending == 0)
+    {
+      // the files left over from catching up have been processed
+      catchUpUpdateTimes.clear();
+    }
+  }
+
+  /**
+   * Update the pending file metrics. This is called on the watch thread after
+   * the pending files change.
+   */
+  private void updatePendingMetrics()
+  {
+    pendingFileCount = pendingFiles.size();
+    oldestPendingFile = pendingFiles.isEmpty() ? null
+        : pendingFiles.firstKey();
+  }
+
+  /**
+   * Watch the journal and process the notification records.
+   * 
+   * @throws IOException          if an I/O error occurs.
+   * @throws InterruptedException if interrupted.
+   */
+  private void watchJournal() throws IOException, InterruptedException
+  {
+    final Path path = getNotificationDir().toPath();
+    try (JournalReader journalReader = new JournalReader(path,
+        getNotificationFilePrefix(), getJournalCheckpointFile().toPath());
+        WatchService watchService = FileSystems.getDefault()
+            .newWatchService())
+    {
+      final WatchEvent.Kind<?>[] events =
+      { StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY };
+      final WatchEvent.Modifier[] modifiers = {};
+      path.register(watchService, events, modifiers);
+      // the records are only checkpointed once they have been dispatched
+      for (WatchKey key; isRunning(); key = null)
+      {
+        processJournal(journalReader);
+        // poll in case an event is missed
+        key = watchService.poll(JOURNAL_POLL_MS, TimeUnit.MILLISECONDS);
+        if (key != null)
+        {
+          key.pollEvents();
+          key.reset();
+        }
+      }
+    }
+  }
+
+  /**
+   * Watch or poll the notification directories and process the notification
+   * files.
+   * 
+   * @throws IOException          if an I/O error occurs.
+   * @throws InterruptedException if interrupted.
+   */
+  private void watchNotificationFiles()
+      throws IOException, InterruptedException
+  {
+    final List<Path> paths = getNotificationPaths();
+    // only check for missed watch events until some are found
+    boolean checking = SCAN_AUTO.equals(scanMode) && claims == null
+        && !watchEventsMissed;
+    DirectoryPoller poller;
+    if (SCAN_WATCH.equals(scanMode) && claims == null)
+    {
+      poller = null;
+    }
+    else if (checking)
+    {
+      poller = new DirectoryPoller(paths, MISSED_EVENTS_CHECK_MS,
+          MISSED_EVENTS_CHECK_MS);
+    }
+    else
+    {
+      poller = new DirectoryPoller(paths, scanMinMs, scanMaxMs);
+    }
+    try (WatchService watchService = SCAN_POLL.equals(scanMode) ? null
+        : FileSystems.getDefault().newWatchService())
+    {
+      if (watchService != null)
+      {
+        final WatchEvent.Kind<?>[] events =
+        { StandardWatchEventKinds.ENTRY_CREATE };
+        final WatchEvent.Modifier[] modifiers = {};
+        for (Path path : paths)
+        {
+          path.register(watchService, events, modifiers);
+        }
+      }
+      // scan after registering so that no file is missed
+      for (Path path : paths)
+      {
+        scanNotificationFiles(path, null);
+      }
+      long timeout;
+      for (WatchKey key = null; isRunning(); key = null)
+      {
+        processPendingFiles();
+        // wait for the next poll or forever if not polling
+        timeout = poller != null ? poller.getWaitTime() : -1;
+        if (backpressure)
+        {
+          // wake so that the backpressure is removed once the receiver has
+          // caught up, the writer may not write files until then
+          timeout = timeout < 0 ? BACKPRESSURE_WAIT_MS
+              : Math.min(timeout, BACKPRESSURE_WAIT_MS);
+        }
+        if (catchingUp && !pendingFiles.isEmpty())
+        {
+          // only take the new files before processing the next batch
+          timeout = 0;
+        }
+        if (LOGGER.isLoggable(Level.FINE))
+          LOGGER.fine(getLogMessage("getting next watch key..."));
+        if (watchService == null)
+        {
+          Thread.sleep(timeout);
+        }
+        else if (timeout < 0)
+        {
+          key = watchService.take();
+        }
+        else
+        {
+          key = watchService.poll(timeout, TimeUnit.MILLISECONDS);
+        }
+        if (key != null)
+        {
+          takeWatchEvents(watchService, key);
+        }
+        // poll after the watch events are taken so that only the files
+        // without watch events are found
+        if (poller != null && poller.isDue())
+        {
+          pollNotificationFiles(poller, watchService != null);
+          if (checking && watchEventsMissed)
+          {
+            checking = false;
+            poller = new DirectoryPoller(paths, scanMinMs, scanMaxMs);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Take the watch events and add the notification files to the pending files.
+   * 
+   * @param watchService the watch service.
+   * @param key          the signaled watch key.
+   * @throws IOException if an I/O error occurs.
+   */
+  private void takeWatchEvents(WatchService watchService,
+      WatchKey signaledKey) throws IOException
+  {
+    Object context;
+    Path path;
+    WatchKey key = signaledKey;
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine(getLogMessage("got watch key, getting events..."));
+    // take the other signaled keys before processing the files so that
+    // the files in the shard directories are processed in order
+    do
+    {
+      path = (Path) key.watchable();
+      for (WatchEvent<?> event : key.pollEvents())
+      {
+        Kind<?> kind = event.kind();
+        if (kind == StandardWatchEventKinds.OVERFLOW)
+        {
+          if (LOGGER.isLoggable(Level.FINE))
+            LOGGER.fine(getLogMessage("event overflow occurred"));
+          scanNotificationFiles(path, null);
+          continue;
+        }
+        context = event.context();
+        if (context instanceof Path)
+        {
+          if (UtilFns.isNotificationFile(context.toString(),
+              getNotificationFilePrefix()))
+          {
+            // the context is relative to the watched directory
+            pendingFiles.putIfAbsent(path.resolve((Path) context),
+                System.nanoTime());
+          }
+        }
+        else
+        {
+          LOGGER.severe(getLogMessage(
+              "unexpected context (" + context.toString() + ")"));
+          shutDownQuietly();
+        }
+      }
+      if (LOGGER.isLoggable(Level.FINE))
+        LOGGER.fine(getLogMessage("done procesing events"));
+      key.reset();
+    }
+    while ((key = watchService.poll()) != null);
   }
 }
@@ -0,0 +1,217 @@
+package com.isti.pdl.eidsutil;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The EIDS reader metrics.
+ */
+public class EIDSReaderMetrics implements EIDSReaderMetricsMXBean
+{
+  /** The detect to parse latency. */
+  private final LatencyHistogram detectToParseLatency = new LatencyHistogram();
+  /** The dispatch latency. */
+  private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+  /** The error count. */
+  private final LongAdder errorCount = new LongAdder();
+  /** The files read. */
+  private final RateMeter filesRead = new RateMeter();
+  /** The handoff latency. */
+  private final LatencyHistogram handoffLatency = new LatencyHistogram();
+  /** The parse latency. */
+  private final LatencyHistogram parseLatency = new LatencyHistogram();
+  /** The reader. */
+  private final EIDSReader reader;
+  /** The receive time. */
+  private final LatencyHistogram receiveTime = new LatencyHistogram();
+  /** The write to detect latency. */
+  private final LatencyHistogram writeToDetectLatency = new LatencyHistogram();
+
+  /**
+   * Create the EIDS reader metrics.
+   * 
+   * @param reader the reader.
+   */
+  public EIDSReaderMetrics(EIDSReader reader)
+  {
+    this.reader = reader;
+  }
+
+  /**
+   * Record an error.
+   */
+  public void error()
+  {
+    errorCount.increment();
+  }
+
+  /**
+   * Record a file read.
+   */
+  public void fileRead()
+  {
+    filesRead.mark(1);
+  }
+
+  @Override
+  public int getBacklog()
+  {
+    return reader.getBacklog();
+  }
+
+  @Override
+  public long getDedupeHits()
+  {
+    final NotificationDedupeCache cache = reader.getDedupeCache();
+    return cache != null ? cache.getHits() : 0;
+  }
+
+  @Override
+  public long getDedupeMisses()
+  {
+    final NotificationDedupeCache cache = reader.getDedupeCache();
+    return cache != null ? cache.getMisses() : 0;
+  }
+
+  @Override
+  public LatencySnapshot getDetectToParseLatency()
+  {
+    return detectToParseLatency.getSnapshot();
+  }
+
+  @Override
+  public LatencySnapshot getDispatchLatency()
+  {
+    return dispatchLatency.getSnapshot();
+  }
+
+  @Override
+  public int getDisposeBacklog()
+  {
+    return reader.getDisposeBacklog();
+  }
+
+  @Override
+  public long getErrorCount()
+  {
+    return errorCount.sum();
+  }
+
+  @Override
+  public long getFilesRead()
+  {
+    return filesRead.getCount();
+  }
+
+  @Override
+  public double getFilesReadPerSecond()
+  {
+    return filesRead.getRate();
+  }
+
+  @Override
+  public LatencySnapshot getHandoffLatency()
+  {
+    return handoffLatency.getSnapshot();
+  }
+
+  @Override
+  public long getOldestPendingAgeMs()
+  {
+    final long time = reader.getOldestPendingTime();
+    if (time < 0)
+    {
+      return -1;
+    }
+    return Math.max(0, System.currentTimeMillis() - time);
+  }
+
+  @Override
+  public LatencySnapshot getParseLatency()
+  {
+    return parseLatency.getSnapshot();
+  }
+
+  @Override
+  public LatencySnapshot getReceiveTime()
+  {
+    return receiveTime.getSnapshot();
+  }
+
+  @Override
+  public LatencySnapshot getWriteToDetectLatency()
+  {
+    return writeToDetectLatency.getSnapshot();
+  }
+
+  @Override
+  public boolean isBackpressure()
+  {
+    return reader.isBackpressure();
+  }
+
+  @Override
+  public boolean isCatchingUp()
+  {
+    return reader.isCatchingUp();
+  }
+
+  /**
+   * Record the detect to parse latency.
+   * 
+   * @param nanos the latency in nanoseconds.
+   */
+  public void recordDetectToParseLatency(long nanos)
+  {
+    detectToParseLatency.record(nanos);
+  }
+
+  /**
+   * Record the dispatch latency.
+   * 
+   * @param nanos the latency in nanoseconds.
+   */
+  public void recordDispatchLatency(long nanos)
+  {
+    dispatchLatency.record(nanos);
+  }
+
+  /**
+   * Record the handoff latency.
+   * 
+   * @param nanos the latency in nanoseconds.
+   */
+  public void recordHandoffLatency(long nanos)
+  {
+    handoffLatency.record(nanos);
+  }
+
+  /**
+   * Record the parse latency.
+   * 
+   * @param nanos the latency in nanoseconds.
+   */
+  public void recordParseLatency(long nanos)
+  {
+    parseLatency.record(nanos);
+  }
+
+  /**
+   * Record the receive time.
+   * 
+   * @param nanos the time in nanoseconds.
+   */
+  public void recordReceiveTime(long nanos)
+  {
+    receiveTime.record(nanos);
+  }
+
+  /**
+   * Record the write to detect latency.
+   * 
+   * @param nanos the latency in nanoseconds.
+   */
+  public void recordWriteToDetectLatency(long nanos)
+  {
+    writeToDetectLatency.record(nanos);
+  }
+}
@@ -0,0 +1,128 @@
+package com.isti.pdl.eidsutil;
+
+/**
+ * The EIDS reader metrics management interface.
+ */
+public interface EIDSReaderMetricsMXBean
+{
+  /**
+   * Get the backlog.
+   * 
+   * @return the number of notifications that have not been processed.
+   */
+  int getBacklog();
+
+  /**
+   * Get the dedupe hit count.
+   * 
+   * @return the number of repeated notifications discarded.
+   */
+  long getDedupeHits();
+
+  /**
+   * Get the dedupe miss count.
+   * 
+   * @return the number of notifications not seen before or 0 if there is no
+   *         dedupe cache.
+   */
+  long getDedupeMisses();
+
+  /**
+   * Get the detect to parse latency, the time from detecting a notification
+   * file or reading a journal record until the notification is parsed.
+   * 
+   * @return the detect to parse latency in microseconds.
+   */
+  LatencySnapshot getDetectToParseLatency();
+
+  /**
+   * Get the dispatch latency, the time from parsing a notification until it
+   * is sent to the receiver.
+   * 
+   * @return the dispatch latency in microseconds.
+   */
+  LatencySnapshot getDispatchLatency();
+
+  /**
+   * Get the dispose backlog.
+   * 
+   * @return the number of processed files that have not been deleted, moved
+   *         or added to a bundle.
+   */
+  int getDisposeBacklog();
+
+  /**
+   * Get the error count.
+   * 
+   * @return the number of errors reading, parsing, receiving or disposing of
+   *         notifications.
+   */
+  long getErrorCount();
+
+  /**
+   * Get the handoff latency, the time from writing a notification file until
+   * it is sent to the receiver.
+   * 
+   * @return the handoff latency in microseconds.
+   */
+  LatencySnapshot getHandoffLatency();
+
+  /**
+   * Get the number of files read.
+   * 
+   * @return the number of notification files or journal records read.
+   */
+  long getFilesRead();
+
+  /**
+   * Get the files read per second.
+   * 
+   * @return the notification files or journal records read per second over
+   *         the last minute.
+   */
+  double getFilesReadPerSecond();
+
+  /**
+   * Get the age of the oldest pending notification file.
+   * 
+   * @return the age in milliseconds or -1 if none or unknown.
+   */
+  long getOldestPendingAgeMs();
+
+  /**
+   * Get the parse latency.
+   * 
+   * @return the parse latency in microseconds.
+   */
+  LatencySnapshot getParseLatency();
+
+  /**
+   * Get the time spent in the receiver.
+   * 
+   * @return the receiveNotification time in microseconds.
+   */
+  LatencySnapshot getReceiveTime();
+
+  /**
+   * Get the write to detect latency, the time from writing a notification
+   * file until the reader detects it.
+   * 
+   * @return the write to detect latency in microseconds.
+   */
+  LatencySnapshot getWriteToDetectLatency();
+
+  /**
+   * Determine if there is backpressure.
+   * 
+   * @return true if the reader is signaling backpressure, false otherwise.
+   */
+  boolean isBackpressure();
+
+  /**
+   * Determine if the reader is catching up.
+   * 
+   * @return true if the reader is processing the newest pending files first,
+   *         false otherwise.
+   */
+  boolean isCatchingUp();
+}
@@ -0,0 +1,561 @@
+package com.isti.pdl.eidsutil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import gov.usgs.earthquake.distribution.Bootstrap;
+import gov.usgs.earthquake.distribution.Notification;
+import gov.usgs.earthquake.distribution.NotificationReceiver;
+import gov.usgs.util.Config;
+import gov.usgs.util.Configurable;
+
+/**
+ * Replays the processed notification files in the archive directory, which
+ * is the processed directory of a reader, for load testing. The processed
+ * bundles are replayed in order followed by the processed files. The
+ * notifications are sent to a receiver configured in a config file or are
+ * written to the notification directory by a writer. They are replayed as
+ * fast as possible or at the times they were written, which are in the
+ * filenames, optionally sped up. The throughput, the time to send each
+ * notification and how far the replay fell behind the write times are
+ * reported.
+ */
+public class EIDSReplay implements Configurable
+{
+  /** The archive directory key. */
+  public static final String KEY_ARCHIVEDIR = "archiveDir";
+  /**
+   * The config file key. This is the config file with the receiver section.
+   */
+  public static final String KEY_CONFIGFILE = "configFile";
+  /**
+   * The receiver key. If the receiver section is specified the notifications
+   * are sent to that receiver, otherwise they are written to the notification
+   * directory.
+   */
+  public static final String KEY_RECEIVER = "receiver";
+  /**
+   * The replay speed key. If the replay speed is not specified or is 0 the
+   * notifications are replayed as fast as possible, otherwise 1 replays them
+   * at the times they were written and 10 replays them 10 times as fast.
+   */
+  public static final String KEY_REPLAYSPEED = "replaySpeed";
+  /** The configuration keys. */
+  public static final String[] KEY_VALUES =
+  { KEY_ARCHIVEDIR, KEY_CONFIGFILE, KEY_RECEIVER, KEY_REPLAYSPEED };
+  /** Logging object. */
+  private static final Logger LOGGER = Logger
+      .getLogger(EIDSReplay.class.getName());
+  /** The progress report interval in milliseconds. */
+  private static final long REPORT_INTERVAL_MS = 10000;
+
+  /**
+   * The EIDS Replay.
+   * 
+   * @param args the program arguments.
+   */
+  public static void main(final String[] args)
+  {
+    final EIDSReplay replay = new EIDSReplay();
+    try
+    {
+      replay.configure(args);
+      replay.startup();
+      replay.replay();
+    }
+    catch (Exception ex)
+    {
+      LOGGER.log(Level.SEVERE,
+          replay.getLogMessage("program terminated abnormally"), ex);
+    }
+    finally
+    {
+      replay.shutdown();
+    }
+  }
+
+  /** The archive directory. */
+  private File archiveDir;
+  /** The config file or null for the current config. */
+  private File configFile;
+  /** The number of errors. */
+  private long errorCount;
+  /** The write time of the first scheduled notification or -1 if none. */
+  private long firstWriteTime = -1;
+  /** The replay time of the first scheduled notification in nanoseconds. */
+  private long firstReplayTime;
+  /** The time behind the write times. */
+  private final LatencyHistogram lag = new LatencyHistogram();
+  /** Name of this configurable object. */
+  private String name;
+  /** The number of notifications at the last progress report. */
+  private long reportCount;
+  /** The time of the last progress report in nanoseconds. */
+  private long reportTime;
+  /** The receiver or null to write the notifications. */
+  private NotificationReceiver receiver;
+  /** The receiver section or null to write the notifications. */
+  private String receiverName;
+  /** The number of notifications replayed. */
+  private long replayCount;
+  /** The replay speed or 0 for as fast as possible. */
+  private double replaySpeed;
+  /** The running flag. */
+  private volatile boolean running;
+  /** The time to send each notification. */
+  private final LatencyHistogram sendLatency = new LatencyHistogram();
+  /** The EIDS writer. */
+  private final EIDSWriter writer;
+
+  /**
+   * Create the EIDS replay.
+   */
+  public EIDSReplay()
+  {
+    name = EIDSReplay.class.getSimpleName();
+    writer = new EIDSWriter();
+  }
+
+  @Override
+  public void configure(Config config) throws Exception
+  {
+    writer.configure(config);
+    String value;
+    for (String key : KEY_VALUES)
+    {
+      value = UtilFns.getConfigProperty(config, key);
+      if (value != null)
+      {
+        setOptionValue(key, value);
+      }
+    }
+  }
+
+  /**
+   * Configure the EIDS replay.
+   * 
+   * @param args the program arguments.
+   * @throws Exception if configuration exceptions occur.
+   */
+  public void configure(final String[] args) throws Exception
+  {
+    String option;
+    writer.configure(args);
+    final StringBuilder sb = new StringBuilder();
+    for (String arg : args)
+    {
+      sb.setLength(0);
+      option = UtilFns.parseOption(arg, KEY_VALUES, sb);
+      if (option != null)
+      {
+        setOptionValue(option, sb.toString());
+      }
+    }
+  }
+
+  /**
+   * Get the archive directory.
+   * 
+   * @return the archive directory.
+   */
+  public File getArchiveDir()
+  {
+    return archiveDir;
+  }
+
+  /**
+   * Get the processed bundles in the archive directory.
+   * 
+   * @return the bundles sorted by name.
+   * @throws IOException if an I/O error occurs.
+   */
+  private List<Path> getBundleFiles() throws IOException
+  {
+    final String prefix = writer.getNotificationFilePrefix();
+    final List<Path> files = new ArrayList<Path>();
+    try (Stream<Path> stream = Files.list(archiveDir.toPath()))
+    {
+      stream.forEach(file -> {
+        final String filename = file.getFileName().toString();
+        if (filename.startsWith(prefix)
+            && filename.endsWith(NotificationArchiver.BUNDLE_FILE_EXT))
+        {
+          files.add(file);
+        }
+      });
+    }
+    Collections.sort(files);
+    return files;
+  }
+
+  /**
+   * Get the log message.
+   * 
+   * @param message the message.
+   * @return the log message.
+   */
+  private String getLogMessage(String message)
+  {
+    return UtilFns.getLogMessage(this, message);
+  }
+
+  @Override
+  public String getName()
+  {
+    return name;
+  }
+
+  /**
+   * Get the receiver section.
+   * 
+   * @return the receiver section or null to write the notifications.
+   */
+  public String getReceiver()
+  {
+    return receiverName;
+  }
+
+  /**
+   * Get the replay speed.
+   * 
+   * @return the replay speed or 0 for as fast as possible.
+   */
+  public double getReplaySpeed()
+  {
+    return replaySpeed;
+  }
+
+  /**
+   * Log the progress.
+   * 
+   * @param message the message.
+   * @param time    the current time in nanoseconds.
+   */
+  private void logProgress(String message, long time)
+  {
+    final double seconds = (time - reportTime) / 1e9;
+    LOGGER.info(getLogMessage(message + " (" + replayCount + " notifications, "
+        + errorCount + " errors, "
+        + String.format("%.1f", (replayCount - reportCount) / seconds)
+        + " per second)"));
+    reportCount = replayCount;
+    reportTime = time;
+  }
+
+  /**
+   * Replay the processed bundles and files in the archive directory.
+   * 
+   * @throws IOException          if an I/O error occurs.
+   * @throws InterruptedException if interrupted.
+   */
+  public void replay() throws IOException, InterruptedException
+  {
+    final List<Path> bundles = getBundleFiles();
+    final List<Path> files = UtilFns.getNotificationFiles(
+        archiveDir.toPath(), writer.getNotificationFilePrefix(),
+        new ArrayList<Path>());
+    Collections.sort(files);
+    LOGGER.info(getLogMessage("replaying " + bundles.size() + " bundles and "
+        + files.size() + " files (" + archiveDir + ")"));
+    final long startTime = System.nanoTime();
+    reportTime = startTime;
+    try
+    {
+      for (Path bundle : bundles)
+      {
+        if (!running)
+        {
+          break;
+        }
+        try
+        {
+          NotificationArchiver.readBundle(bundle,
+              (filename, mtime, data) -> replayNotification(filename, data));
+        }
+        catch (InterruptedIOException ex)
+        {
+          throw ex;
+        }
+        catch (IOException ex)
+        {
+          errorCount++;
+          LOGGER.warning(
+              getLogMessage("could not read bundle (" + bundle + "): " + ex));
+        }
+      }
+      byte[] data;
+      for (Path file : files)
+      {
+        if (!running)
+        {
+          break;
+        }
+        try
+        {
+          data = Files.readAllBytes(file);
+        }
+        catch (NoSuchFileException ex)
+        {
+          continue;
+        }
+        catch (IOException ex)
+        {
+          errorCount++;
+          LOGGER.warning(
+              getLogMessage("could not read file (" + file + "): " + ex));
+          continue;
+        }
+        replayNotification(file.getFileName().toString(), data);
+      }
+    }
+    catch (InterruptedIOException ex)
+    {
+      if (running)
+      {
+        throw new InterruptedException(ex.getMessage());
+      }
+    }
+    reportCount = 0;
+    reportTime = startTime;
+    logProgress("replay " + (running ? "completed" : "stopped"),
+        System.nanoTime());
+    LOGGER.info(getLogMessage(
+        "send latency in microseconds: " + sendLatency.getSnapshot()));
+    if (replaySpeed > 0)
+    {
+      LOGGER.info(getLogMessage("time behind the write times in microseconds: "
+          + lag.getSnapshot()));
+    }
+  }
+
+  /**
+   * Replay the notification, waiting until it is due if not replaying as fast
+   * as possible.
+   * 
+   * @param filename the notification filename.
+   * @param data     the notification file contents.
+   * @throws InterruptedIOException if interrupted.
+   */
+  private void replayNotification(String filename, byte[] data)
+      throws InterruptedIOException
+  {
+    if (!running)
+    {
+      throw new InterruptedIOException("replay stopped");
+    }
+    final long writeTime = UtilFns.getNotificationTime(filename,
+        writer.getNotificationFilePrefix());
+    if (replaySpeed > 0 && writeTime >= 0)
+    {
+      if (firstWriteTime < 0)
+      {
+        firstWriteTime = writeTime;
+        firstReplayTime = System.nanoTime();
+      }
+      // the notifications before the first write time are not delayed
+      final long wait = firstReplayTime
+          + (long) (TimeUnit.MILLISECONDS.toNanos(writeTime - firstWriteTime)
+              / replaySpeed)
+          - System.nanoTime();
+      if (wait > 0)
+      {
+        try
+        {
+          TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        catch (InterruptedException ex)
+        {
+          throw new InterruptedIOException("replay interrupted");
+        }
+      }
+      lag.record(Math.max(0, -wait));
+    }
+    final Notification notification;
+    try
+    {
+      notification = UtilFns.parseNotification(ByteBuffer.wrap(data));
+    }
+    catch (Exception ex)
+    {
+      errorCount++;
+      LOGGER.warning(getLogMessage(
+          "could not parse notification (" + filename + "): " + ex));
+      return;
+    }
+    final long sendTime = System.nanoTime();
+    try
+    {
+      if (receiver != null)
+      {
+        receiver.receiveNotification(notification);
+      }
+      else
+      {
+        writer.processNotification(notification);
+      }
+    }
+    catch (InterruptedIOException ex)
+    {
+      throw ex;
+    }
+    catch (Exception ex)
+    {
+      errorCount++;
+      LOGGER.log(Level.WARNING, getLogMessage(
+          "could not send notification (" + filename + ")"), ex);
+    }
+    final long time = System.nanoTime();
+    sendLatency.record(time - sendTime);
+    replayCount++;
+    if (time - reportTime >= TimeUnit.MILLISECONDS.toNanos(REPORT_INTERVAL_MS))
+    {
+      logProgress("replaying", time);
+    }
+  }
+
+  /**
+   * Set the archive directory. This must be set before startup.
+   * 
+   * @param archiveDir the archive directory, the processed directory of a
+   *                   reader.
+   */
+  public void setArchiveDir(File archiveDir)
+  {
+    this.archiveDir = archiveDir;
+  }
+
+  /**
+   * Set the config file. This must be set before startup.
+   * 
+   * @param configFile the config file with the receiver section or null for
+   *                   the current config.
+   */
+  public void setConfigFile(File configFile)
+  {
+    this.configFile = configFile;
+  }
+
+  @Override
+  public void setName(String name)
+  {
+    this.name = name;
+  }
+
+  /**
+   * Set the option value.
+   * 
+   * @param option the option.
+   * @param value  the value.
+   * @throws Exception if configuration exceptions occur.
+   */
+  private void setOptionValue(String option, String value) throws Exception
+  {
+    if (option.equalsIgnoreCase(KEY_ARCHIVEDIR))
+    {
+      setArchiveDir(new File(value));
+    }
+    if (option.equalsIgnoreCase(KEY_CONFIGFILE))
+    {
+      setConfigFile(value.isEmpty() ? null : new File(value));
+    }
+    if (option.equalsIgnoreCase(KEY_RECEIVER))
+    {
+      setReceiver(value);
+    }
+    if (option.equalsIgnoreCase(KEY_REPLAYSPEED))
+    {
+      setReplaySpeed(Double.parseDouble(value));
+    }
+  }
+
+  /**
+   * Set the receiver section. This must be set before startup.
+   * 
+   * @param s the receiver section in the config file or null or empty string
+   *          to write the notifications to the notification directory.
+   */
+  public void setReceiver(String s)
+  {
+    receiverName = s == null || s.isEmpty() ? null : s;
+  }
+
+  /**
+   * Set the replay speed. This must be set before startup.
+   * 
+   * @param replaySpeed the replay speed or 0 for as fast as possible.
+   */
+  public void setReplaySpeed(double replaySpeed)
+  {
+    this.replaySpeed = Math.max(0, replaySpeed);
+  }
+
+  @Override
+  public void shutdown()
+  {
+    running = false;
+    try
+    {
+      if (receiver != null)
+      {
+        receiver.shutdown();
+      }
+      else
+      {
+        writer.shutdown();
+      }
+    }
+    catch (Exception ex)
+    {
+      LOGGER.log(Level.WARNING, getLogMessage("could not shut down"), ex);
+    }
+  }
+
+  @Override
+  public void startup() throws Exception
+  {
+    if (archiveDir == null || !archiveDir.isDirectory())
+    {
+      throw new IllegalArgumentException(
+          "archive directory not found (" + archiveDir + ")");
+    }
+    if (receiverName != null)
+    {
+      Config config = Config.getConfig();
+      if (configFile != null)
+      {
+        config = new Bootstrap().loadConfig(configFile);
+        Config.setConfig(config);
+      }
+      if (config == null)
+      {
+        throw new IllegalArgumentException(
+            "config file required for the receiver (" + receiverName + ")");
+      }
+      // the receiver is configured from its section of the config file
+      receiver = (NotificationReceiver) config.getObject(receiverName);
+      if (receiver == null)
+      {
+        throw new IllegalArgumentException(
+            "receiver not found (" + receiverName + ")");
+      }
+      receiver.startup();
+    }
+    else
+    {
+      writer.startup();
+    }
+    running = true;
+  }
+}
@@ -2,20 +2,187 @@ package com.isti.pdl.eidsutil;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.ObjectName;
+
 import gov.usgs.earthquake.distribution.Notification;
-import gov.usgs.util.FileUtils;
+import gov.usgs.util.Config;
 
-public class EIDSWriter extends EIDSNotifications
+public class EIDSWriter extends EIDSNotifications implements Runnable
 {
+  /** No backpressure, notifications are always written. */
+  public static final String BACKPRESSURE_NONE = "none";
+  /**
+   * The spill backpressure. While there is backpressure the notification
+   * files are written to the spill directory and they are moved to the
+   * notification directory once the backpressure is removed.
+   */
+  public static final String BACKPRESSURE_SPILL = "spill";
+  /**
+   * The throttle backpressure. While there is backpressure the caller waits
+   * before the notification is written.
+   */
+  public static final String BACKPRESSURE_THROTTLE = "throttle";
+  /** The default asynchronous batch size. */
+  public static final int DEFAULT_ASYNCBATCHSIZE = 100;
+  /** The default asynchronous linger time in milliseconds. */
+  public static final long DEFAULT_ASYNCLINGERMS = 10;
+  /**
+   * The batch durability. Each notification file is still synced before it is
+   * renamed, only the directory is synced once for each batch rather than
+   * after each rename.
+   */
+  public static final String DURABILITY_BATCH = "batch";
+  /**
+   * The file durability. Each notification file is synced before it is renamed
+   * and the directory is synced after each rename.
+   */
+  public static final String DURABILITY_FILE = "file";
+  /** No durability, the files are never synced. */
+  public static final String DURABILITY_NONE = "none";
+  /**
+   * The binary encoding, which is smaller and faster to write and read but
+   * may only be read by an EIDSReader.
+   */
+  public static final String ENCODING_BINARY = "binary";
+  /** The XML encoding. */
+  public static final String ENCODING_XML = "xml";
+  /** The asynchronous batch size key. */
+  public static final String KEY_ASYNCBATCHSIZE = "asyncBatchSize";
+  /** The asynchronous linger time key. */
+  public static final String KEY_ASYNCLINGERMS = "asyncLingerMs";
+  /**
+   * The backpressure key, either "none" (the default), "throttle" or "spill",
+   * for how the backpressure file created by the reader is honored.
+   */
+  public static final String KEY_BACKPRESSURE = "backpressure";
+  /** The durability key, either "none" (the default), "file" or "batch". */
+  public static final String KEY_DURABILITY = "durability";
+  /** The encoding key, either "xml" (the default) or "binary". */
+  public static final String KEY_ENCODING = "encoding";
+  /**
+   * The asynchronous queue size key. If the queue size is not specified or is
+   * 0 notifications are written on the caller's thread.
+   */
+  public static final String KEY_ASYNCQUEUESIZE = "asyncQueueSize";
+  /**
+   * The spill directory key. If the spill directory is not specified the
+   * "spill" subdirectory of the notification directory is used. The spill
+   * directory must be on the same file system as the notification directory.
+   */
+  public static final String KEY_SPILLDIR = "spillDir";
+  /** The configuration keys. */
+  public static final String[] KEY_VALUES =
+  { KEY_ASYNCBATCHSIZE, KEY_ASYNCLINGERMS, KEY_ASYNCQUEUESIZE,
+      KEY_BACKPRESSURE, KEY_DURABILITY, KEY_ENCODING, KEY_SPILLDIR };
+  /** The time between checks for the backpressure file. */
+  private static final long BACKPRESSURE_CHECK_MS = 100;
   /** Logging object. */
   private static final Logger LOGGER = Logger
       .getLogger(EIDSWriter.class.getName());
+  /** The time to wait for a notification before checking for shutdown. */
+  private static final long POLL_MS = 500;
+  /**
+   * The age of a temporary file after which it was left by a writer that
+   * stopped, a temporary file is only present while it is being written.
+   */
+  private static final long STALE_TEMP_FILE_MS = 60000;
+  /* For autonumbering threads. */
+  private static int threadInitNumber;
+
+  private static synchronized int nextThreadNum()
+  {
+    return threadInitNumber++;
+  }
 
+  /**
+   * Write the file.
+   * 
+   * @param file   the file.
+   * @param buffer the buffer containing the data.
+   * @param sync   true to sync the file data to the storage device.
+   * @throws IOException if an I/O error occurs.
+   */
+  private static void writeFile(Path file, ByteBuffer buffer, boolean sync)
+      throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+    {
+      while (buffer.hasRemaining())
+      {
+        channel.write(buffer);
+      }
+      if (sync)
+      {
+        channel.force(false);
+      }
+    }
+  }
+
+  /** The asynchronous batch size. */
+  private int asyncBatchSize = DEFAULT_ASYNCBATCHSIZE;
+  /** The asynchronous linger time in milliseconds. */
+  private long asyncLingerMs = DEFAULT_ASYNCLINGERMS;
+  /** The asynchronous queue size or 0 if none. */
+  private int asyncQueueSize;
+  /** The backpressure. */
+  private String backpressure = BACKPRESSURE_NONE;
+  /** The time of the next check for the backpressure file. */
+  private volatile long backpressureCheckTime;
+  /** True if the backpressure file existed at the last check. */
+  private volatile boolean backpressureFile;
+  /** True if the backpressure file was stale at the last check. */
+  private volatile boolean backpressureStale;
+  /** The dedupe cache or null if none. */
+  private volatile NotificationDedupeCache dedupeCache;
+  /** The durability. */
+  private String durability = DURABILITY_NONE;
+  /** The binary encoder for each writing thread. */
+  private final ThreadLocal<NotificationBinaryCodec> binaryEncoder = ThreadLocal
+      .withInitial(NotificationBinaryCodec::new);
+  /** The encoding. */
+  private String encoding = ENCODING_XML;
+  /** The XML encoder for each writing thread. */
+  private final ThreadLocal<NotificationXmlEncoder> encoder = ThreadLocal
+      .withInitial(NotificationXmlEncoder::new);
   /** The file count. */
   private long fileCount;
+  /** The journal writer or null if none. */
+  private JournalWriter journalWriter;
+  /** The metrics. */
+  private final EIDSWriterMetrics metrics = new EIDSWriterMetrics(this);
+  /** The metrics MBean name or null if not registered. */
+  private ObjectName metricsName;
+  /** The notification queue or null if synchronous. */
+  private volatile BlockingQueue<Notification> notificationQueue;
+  /** The running flag. */
+  private volatile boolean running;
+  /** The spill directory or null for the default. */
+  private File spillDir;
+  /** True if there may be files in the spill directory. */
+  private volatile boolean spilled = true;
+  /** The writer thread. */
+  private Thread writerThread;
 
   /**
    * Create the EIDS writer.
@@ -25,6 +192,247 @@ public class EIDSWriter extends EIDSNotifications
     super(EIDSWriter.class.getSimpleName());
   }
 
+  @Override
+  public void configure(Config config) throws Exception
+  {
+    super.configure(config);
+    String value;
+    for (String key : KEY_VALUES)
+    {
+      value = UtilFns.getConfigProperty(config, key);
+      if (value != null)
+      {
+        setOptionValue(key, value);
+      }
+    }
+  }
+
+  /**
+   * Configure the EIDS writer.
+   * 
+   * @param args the program arguments.
+   * @throws Exception if configuration exceptions occur.
+   */
+  public void configure(final String[] args) throws Exception
+  {
+    String option;
+    super.configure(args);
+    final StringBuilder sb = new StringBuilder();
+    for (String arg : args)
+    {
+      sb.setLength(0);
+      option = UtilFns.parseOption(arg, KEY_VALUES, sb);
+      if (option != null)
+      {
+        setOptionValue(option, sb.toString());
+      }
+    }
+  }
+
+  /**
+   * Get the asynchronous batch size.
+   * 
+   * @return the asynchronous batch size.
+   */
+  public int getAsyncBatchSize()
+  {
+    return asyncBatchSize;
+  }
+
+  /**
+   * Get the asynchronous linger time.
+   * 
+   * @return the asynchronous linger time in milliseconds.
+   */
+  public long getAsyncLingerMs()
+  {
+    return asyncLingerMs;
+  }
+
+  /**
+   * Get the asynchronous queue size.
+   * 
+   * @return the asynchronous queue size or 0 if notifications are written on
+   *         the caller's thread.
+   */
+  public int getAsyncQueueSize()
+  {
+    return asyncQueueSize;
+  }
+
+  /**
+   * Get the backlog.
+   * 
+   * @return the number of queued notifications that have not been written.
+   */
+  int getBacklog()
+  {
+    final BlockingQueue<Notification> queue = notificationQueue;
+    return queue != null ? queue.size() : 0;
+  }
+
+  /**
+   * Get the backpressure.
+   * 
+   * @return the backpressure, either "none", "throttle" or "spill".
+   */
+  public String getBackpressure()
+  {
+    return backpressure;
+  }
+
+  /**
+   * Get the dedupe cache.
+   * 
+   * @return the dedupe cache or null if none.
+   */
+  public NotificationDedupeCache getDedupeCache()
+  {
+    return dedupeCache;
+  }
+
+  /**
+   * Get the durability.
+   * 
+   * @return the durability, not null.
+   */
+  public String getDurability()
+  {
+    return durability;
+  }
+
+  /**
+   * Get the encoding.
+   * 
+   * @return the encoding, either "xml" or "binary".
+   */
+  public String getEncoding()
+  {
+    return encoding;
+  }
+
+  /**
+   * Wait while there is backpressure.
+   * 
+   * @throws InterruptedIOException if interrupted.
+   */
+  private void awaitBackpressure() throws InterruptedIOException
+  {
+    if (!isBackpressure())
+    {
+      return;
+    }
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine(getLogMessage("waiting for backpressure to be removed"));
+    try
+    {
+      do
+      {
+        Thread.sleep(BACKPRESSURE_CHECK_MS);
+      }
+      while (isBackpressure());
+    }
+    catch (InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(
+          "interrupted while waiting for backpressure");
+    }
+  }
+
+  /**
+   * Delete the temporary files left in the notification directories by a
+   * writer that stopped before they were renamed.
+   */
+  private void deleteStaleTempFiles()
+  {
+    final String prefix = getNotificationFilePrefix();
+    final long staleTime = System.currentTimeMillis() - STALE_TEMP_FILE_MS;
+    int count = 0;
+    try
+    {
+      for (Path dir : getNotificationPaths())
+      {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir,
+            file -> {
+              final String filename = file.getFileName().toString();
+              return filename.startsWith(prefix)
+                  && filename.endsWith(TEMP_FILE_EXT);
+            }))
+        {
+          for (Path file : stream)
+          {
+            if (Files.getLastModifiedTime(file).toMillis() < staleTime
+                && Files.deleteIfExists(file))
+            {
+              count++;
+            }
+          }
+        }
+      }
+    }
+    catch (IOException ex)
+    {
+      LOGGER.warning(
+          getLogMessage("could not delete temporary files: " + ex));
+    }
+    if (count > 0)
+    {
+      LOGGER.info(getLogMessage("deleted " + count + " temporary files"));
+    }
+  }
+
+  /**
+   * Encode the notification with the encoding.
+   * 
+   * @param notification the notification.
+   * @return the buffer containing the encoded notification, which is only
+   *         valid until the next notification is encoded on this thread, or
+   *         null if the notification could not be encoded.
+   */
+  private ByteBuffer encode(Notification notification)
+  {
+    if (ENCODING_BINARY.equals(encoding))
+    {
+      return binaryEncoder.get().encode(notification);
+    }
+    return encoder.get().encode(notification);
+  }
+
+  /**
+   * Forget the notifications in the dedupe cache so that they are written if
+   * they are received again.
+   * 
+   * @param notifications the notifications that could not be written.
+   */
+  private void forgetNotifications(List<Notification> notifications)
+  {
+    final NotificationDedupeCache cache = dedupeCache;
+    if (cache != null)
+    {
+      for (Notification notification : notifications)
+      {
+        cache.forget(notification.getProductId());
+      }
+    }
+  }
+
+  /**
+   * Get the journal writer.
+   * 
+   * @return the journal writer.
+   */
+  private synchronized JournalWriter getJournalWriter()
+  {
+    if (journalWriter == null)
+    {
+      journalWriter = new JournalWriter(getNotificationDir().toPath(),
+          getNotificationFilePrefix(), getJournalSegmentSize(),
+          !DURABILITY_NONE.equals(durability));
+    }
+    return journalWriter;
+  }
+
   /**
    * Get the log message.
    * 
@@ -37,35 +445,759 @@ public class EIDSWriter extends EIDSNotifications
   }
 
   /**
-   * Process the notification.
+   * Get the metrics.
+   * 
+   * @return the metrics.
+   */
+  public EIDSWriterMetrics getMetrics()
+  {
+    return metrics;
+  }
+
+  /**
+   * Get the spill directory.
+   * 
+   * @return the spill directory, not null.
+   */
+  public File getSpillDir()
+  {
+    File dir = spillDir;
+    if (dir == null)
+    {
+      dir = new File(getNotificationDir(), BACKPRESSURE_SPILL);
+    }
+    return dir;
+  }
+
+  /**
+   * Determine if the reader has signaled backpressure. The backpressure file
+   * is checked at most every 100 milliseconds and is ignored if the reader has
+   * not updated it for a minute.
+   * 
+   * @return true if there is backpressure and it is honored, false otherwise.
+   */
+  public boolean isBackpressure()
+  {
+    if (BACKPRESSURE_NONE.equals(backpressure))
+    {
+      return false;
+    }
+    final long time = System.currentTimeMillis();
+    if (time >= backpressureCheckTime)
+    {
+      // the last modified time is 0 if the file does not exist
+      final long modified = getBackpressureFile().lastModified();
+      final boolean stale = modified != 0
+          && time - modified > BACKPRESSURE_STALE_MS;
+      if (stale && !backpressureStale)
+      {
+        LOGGER.warning(getLogMessage("ignoring stale backpressure file ("
+            + getBackpressureFile() + ")"));
+      }
+      backpressureStale = stale;
+      backpressureFile = modified != 0 && !stale;
+      backpressureCheckTime = time + BACKPRESSURE_CHECK_MS;
+    }
+    return backpressureFile;
+  }
+
+  /**
+   * Process the notification. In asynchronous mode the notification is queued
+   * for the writer thread, waiting if the queue is full. With throttle
+   * backpressure the caller waits while there is backpressure.
    * 
    * @param notification the notification.
-   * @throws IOException
+   * @throws IOException if an I/O error occurs.
    */
   public void processNotification(Notification notification) throws IOException
   {
-    // code lifted from gov.usgs.earthquake.distribution.EIDSNotificationSender
+    final NotificationDedupeCache cache = dedupeCache;
+    if (cache != null && cache.isDuplicate(notification.getProductId()))
+    {
+      if (LOGGER.isLoggable(Level.FINE))
+        LOGGER.fine(getLogMessage("not writing repeated notification ("
+            + notification.getProductId() + ")"));
+      return;
+    }
+    final List<Notification> notifications = Collections
+        .singletonList(notification);
+    final BlockingQueue<Notification> queue;
+    try
+    {
+      if (BACKPRESSURE_THROTTLE.equals(backpressure))
+      {
+        awaitBackpressure();
+      }
+      queue = notificationQueue;
+      if (queue != null)
+      {
+        queue.put(notification);
+      }
+    }
+    catch (InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+      forgetNotifications(notifications);
+      throw new InterruptedIOException(
+          "interrupted while queuing notification");
+    }
+    catch (InterruptedIOException ex)
+    {
+      forgetNotifications(notifications);
+      throw ex;
+    }
+    if (queue != null)
+    {
+      // the queue is closed before it is drained at shutdown, so if it was
+      // closed the notification was either drained or must be written here
+      if (notificationQueue == queue || !queue.remove(notification))
+      {
+        return;
+      }
+    }
+    try
+    {
+      writeNotifications(notifications, new ArrayList<Notification>(1));
+    }
+    catch (IOException | RuntimeException ex)
+    {
+      metrics.error(1);
+      forgetNotifications(notifications);
+      throw ex;
+    }
+  }
 
-    // create a unique filename
-    final String filename = getFilename();
-    final String message = UtilFns.toXML(notification);
-    if (message.isEmpty())
+  @Override
+  public void run()
+  {
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine(getLogMessage("run started (" + getNotificationDir() + ")"));
+    final BlockingQueue<Notification> queue = notificationQueue;
+    final List<Notification> batch = new ArrayList<Notification>(
+        asyncBatchSize);
+    Notification notification;
+    long deadline;
+    long timeout;
+    try
+    {
+      while (running)
+      {
+        notification = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+        if (notification == null)
+        {
+          continue;
+        }
+        batch.add(notification);
+        // linger for the rest of the batch
+        deadline = System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(asyncLingerMs);
+        while (batch.size() < asyncBatchSize)
+        {
+          if (queue.drainTo(batch, asyncBatchSize - batch.size()) > 0)
+          {
+            continue;
+          }
+          timeout = deadline - System.nanoTime();
+          if (timeout <= 0)
+          {
+            break;
+          }
+          notification = queue.poll(timeout, TimeUnit.NANOSECONDS);
+          if (notification == null)
+          {
+            break;
+          }
+          batch.add(notification);
+        }
+        writeBatch(batch);
+      }
+    }
+    catch (InterruptedException ex)
+    {
+    }
+    // write anything still pending
+    queue.drainTo(batch);
+    writeBatch(batch);
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine(getLogMessage("run finished (" + getNotificationDir() + ")"));
+  }
+
+  /**
+   * Register the metrics MBean.
+   */
+  private void registerMetrics()
+  {
+    try
+    {
+      final ObjectName name = UtilFns.registerMBean(metrics,
+          EIDSWriter.class.getSimpleName(), getName());
+      synchronized (this)
+      {
+        metricsName = name;
+      }
+    }
+    catch (Exception ex)
+    {
+      LOGGER.warning(getLogMessage("could not register metrics: " + ex));
+    }
+  }
+
+  /**
+   * Move the files in the spill directory to the notification directory, or
+   * their shard directories, in the order they were written.
+   */
+  private synchronized void restoreSpilledFiles()
+  {
+    if (!spilled)
+    {
+      return;
+    }
+    final Path spillPath = getSpillDir().toPath();
+    final List<Path> files = new ArrayList<Path>();
+    final Set<Path> dirs = new LinkedHashSet<Path>();
+    String filename;
+    Path dir;
+    try
+    {
+      if (Files.isDirectory(spillPath))
+      {
+        UtilFns.getNotificationFiles(spillPath, getNotificationFilePrefix(),
+            files);
+        Collections.sort(files);
+        for (Path file : files)
+        {
+          filename = file.getFileName().toString();
+          dir = getNotificationDir(filename).toPath();
+          Files.move(file, dir.resolve(filename),
+              StandardCopyOption.ATOMIC_MOVE);
+          dirs.add(dir);
+        }
+        if (!files.isEmpty())
+        {
+          if (!DURABILITY_NONE.equals(durability))
+          {
+            for (Path d : dirs)
+            {
+              syncDirectory(d);
+            }
+          }
+          LOGGER.info(getLogMessage(
+              "restored " + files.size() + " spilled notification files"));
+        }
+      }
+      spilled = false;
+    }
+    catch (IOException ex)
     {
       LOGGER.warning(
-          getLogMessage("could not get XML for name (" + filename + ")"));
+          getLogMessage("could not restore spilled notification files: " + ex));
+    }
+  }
+
+  /**
+   * Set the asynchronous batch size.
+   * 
+   * @param asyncBatchSize the maximum number of notifications committed
+   *                       together.
+   */
+  public void setAsyncBatchSize(int asyncBatchSize)
+  {
+    this.asyncBatchSize = Math.max(1, asyncBatchSize);
+  }
+
+  /**
+   * Set the asynchronous linger time.
+   * 
+   * @param asyncLingerMs the time in milliseconds to wait for more
+   *                      notifications before committing a partial batch.
+   */
+  public void setAsyncLingerMs(long asyncLingerMs)
+  {
+    this.asyncLingerMs = Math.max(0, asyncLingerMs);
+  }
+
+  /**
+   * Set the asynchronous queue size. This must be set before startup.
+   * 
+   * @param asyncQueueSize the asynchronous queue size or 0 to write
+   *                       notifications on the caller's thread.
+   */
+  public void setAsyncQueueSize(int asyncQueueSize)
+  {
+    this.asyncQueueSize = Math.max(0, asyncQueueSize);
+  }
+
+  /**
+   * Set the backpressure.
+   * 
+   * @param s the backpressure, either "none", "throttle" or "spill", or null
+   *          or empty string for the default.
+   * @throws IllegalArgumentException if the backpressure is not valid.
+   */
+  public void setBackpressure(String s)
+  {
+    if (s == null || s.isEmpty())
+    {
+      s = BACKPRESSURE_NONE;
+    }
+    if (BACKPRESSURE_NONE.equalsIgnoreCase(s))
+    {
+      backpressure = BACKPRESSURE_NONE;
+    }
+    else if (BACKPRESSURE_THROTTLE.equalsIgnoreCase(s))
+    {
+      backpressure = BACKPRESSURE_THROTTLE;
+    }
+    else if (BACKPRESSURE_SPILL.equalsIgnoreCase(s))
+    {
+      backpressure = BACKPRESSURE_SPILL;
+    }
+    else
+    {
+      throw new IllegalArgumentException("invalid backpressure (" + s + ")");
+    }
+  }
+
+  /**
+   * Set the durability.
+   * 
+   * @param s the durability, either "none", "file" or "batch", or null or
+   *          empty string for the default.
+   * @throws IllegalArgumentException if the durability is not valid.
+   */
+  public void setDurability(String s)
+  {
+    if (s == null || s.isEmpty())
+    {
+      s = DURABILITY_NONE;
+    }
+    if (DURABILITY_NONE.equalsIgnoreCase(s))
+    {
+      durability = DURABILITY_NONE;
+    }
+    else if (DURABILITY_FILE.equalsIgnoreCase(s))
+    {
+      durability = DURABILITY_FILE;
+    }
+    else if (DURABILITY_BATCH.equalsIgnoreCase(s))
+    {
+      durability = DURABILITY_BATCH;
+    }
+    else
+    {
+      throw new IllegalArgumentException("invalid durability (" + s + ")");
+    }
+  }
+
+  /**
+   * Set the encoding.
+   * 
+   * @param s the encoding, either "xml" or "binary", or null or empty string
+   *          for the default.
+   * @throws IllegalArgumentException if the encoding is not valid.
+   */
+  public void setEncoding(String s)
+  {
+    if (s == null || s.isEmpty())
+    {
+      s = ENCODING_XML;
+    }
+    if (ENCODING_XML.equalsIgnoreCase(s))
+    {
+      encoding = ENCODING_XML;
+    }
+    else if (ENCODING_BINARY.equalsIgnoreCase(s))
+    {
+      encoding = ENCODING_BINARY;
+    }
+    else
+    {
+      throw new IllegalArgumentException("invalid encoding (" + s + ")");
+    }
+  }
+
+  /**
+   * Set the option value.
+   * 
+   * @param option the option.
+   * @param value  the value.
+   * @throws Exception if configuration exceptions occur.
+   */
+  private void setOptionValue(String option, String value) throws Exception
+  {
+    if (option.equalsIgnoreCase(KEY_ASYNCBATCHSIZE))
+    {
+      setAsyncBatchSize(Integer.parseInt(value));
+    }
+    if (option.equalsIgnoreCase(KEY_ASYNCLINGERMS))
+    {
+      setAsyncLingerMs(Long.parseLong(value));
+    }
+    if (option.equalsIgnoreCase(KEY_ASYNCQUEUESIZE))
+    {
+      setAsyncQueueSize(Integer.parseInt(value));
+    }
+    if (option.equalsIgnoreCase(KEY_BACKPRESSURE))
+    {
+      setBackpressure(value);
+    }
+    if (option.equalsIgnoreCase(KEY_DURABILITY))
+    {
+      setDurability(value);
+    }
+    if (option.equalsIgnoreCase(KEY_ENCODING))
+    {
+      setEncoding(value);
+    }
+    if (option.equalsIgnoreCase(KEY_SPILLDIR))
+    {
+      setSpillDir(new File(value));
+    }
+  }
+
+  /**
+   * Set the spill directory.
+   * 
+   * @param spillDir the spill directory or null for the default.
+   */
+  public void setSpillDir(File spillDir)
+  {
+    this.spillDir = spillDir;
+  }
+
+  @Override
+  public void shutdown() throws Exception
+  {
+    running = false;
+    final Thread thread;
+    synchronized (this)
+    {
+      thread = writerThread;
+      writerThread = null;
+    }
+    if (thread != null)
+    {
+      // do not interrupt since that would close a channel being written
+      thread.join();
+    }
+    // close the queue before it is drained so that a notification queued
+    // after the drain is written by the caller
+    final BlockingQueue<Notification> queue = notificationQueue;
+    notificationQueue = null;
+    if (queue != null)
+    {
+      // write anything queued after the writer thread finished
+      final List<Notification> batch = new ArrayList<Notification>();
+      queue.drainTo(batch);
+      writeBatch(batch);
+    }
+    if (!isJournalTransport())
+    {
+      // do not leave spilled files behind, the reader still limits the
+      // notifications waiting for the receiver
+      restoreSpilledFiles();
+    }
+    final JournalWriter jw;
+    synchronized (this)
+    {
+      jw = journalWriter;
+      journalWriter = null;
+    }
+    final ObjectName name;
+    synchronized (this)
+    {
+      name = metricsName;
+      metricsName = null;
+    }
+    if (name != null)
+    {
+      try
+      {
+        UtilFns.unregisterMBean(name);
+      }
+      catch (Exception ex)
+      {
+        LOGGER.warning(getLogMessage("could not unregister metrics: " + ex));
+      }
+    }
+    if (jw != null)
+    {
+      jw.close();
+    }
+    super.shutdown();
+  }
+
+  @Override
+  public void startup() throws Exception
+  {
+    super.startup();
+    deleteStaleTempFiles();
+    final Thread thread;
+    final boolean register;
+    synchronized (this)
+    {
+      register = metricsName == null;
+      if (dedupeCache == null)
+      {
+        dedupeCache = createDedupeCache();
+      }
+      if (asyncQueueSize > 0 && writerThread == null)
+      {
+        notificationQueue = new ArrayBlockingQueue<Notification>(
+            asyncQueueSize);
+        running = true;
+        thread = new Thread(this, getName() + nextThreadNum());
+        writerThread = thread;
+      }
+      else
+      {
+        thread = null;
+      }
+    }
+    if (register)
+    {
+      registerMetrics();
+    }
+    if (thread != null)
+    {
+      thread.start();
+    }
+  }
+
+  /**
+   * Sync the directory so that renames in it are durable.
+   * 
+   * @param dir the directory.
+   */
+  private void syncDirectory(Path dir)
+  {
+    try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ))
+    {
+      channel.force(true);
+    }
+    catch (IOException ex)
+    {
+      // not supported on all platforms
+      if (LOGGER.isLoggable(Level.FINE))
+        LOGGER.fine(getLogMessage("could not sync directory (" + dir + "): "
+            + ex));
+    }
+  }
+
+  /**
+   * Write the batch of notifications and clear it. If the batch could not be
+   * written the notifications that were not written are written separately so
+   * that only the notifications that fail are dropped.
+   * 
+   * @param batch the notifications.
+   */
+  private void writeBatch(List<Notification> batch)
+  {
+    if (batch.isEmpty())
+    {
       return;
     }
-    final File notificationFile = getNotificationFile(filename);
-    if (notificationFile == null)
+    final List<Notification> written = new ArrayList<Notification>(
+        batch.size());
+    try
+    {
+      writeNotifications(batch, written);
+    }
+    catch (Exception ex)
+    {
+      LOGGER.log(Level.WARNING, getLogMessage("Error writing notifications ("
+          + written.size() + " of " + batch.size() + " written)"), ex);
+      final Set<Notification> done = Collections
+          .newSetFromMap(new IdentityHashMap<Notification, Boolean>());
+      done.addAll(written);
+      List<Notification> notifications;
+      for (Notification notification : batch)
+      {
+        if (done.contains(notification))
+        {
+          continue;
+        }
+        notifications = Collections.singletonList(notification);
+        try
+        {
+          writeNotifications(notifications, written);
+        }
+        catch (Exception e)
+        {
+          metrics.error(1);
+          forgetNotifications(notifications);
+          LOGGER.log(Level.WARNING, getLogMessage("Error writing notification ("
+              + notification.getProductId() + ")"), e);
+        }
+      }
+    }
+    batch.clear();
+  }
+
+  /**
+   * Write the notifications to the journal.
+   * 
+   * @param notifications the notifications.
+   * @param written       the list for the notifications that were written.
+   * @throws IOException if an I/O error occurs.
+   */
+  private void writeJournal(List<Notification> notifications,
+      List<Notification> written) throws IOException
+  {
+    final long startTime = System.nanoTime();
+    final List<byte[]> records = new ArrayList<byte[]>(notifications.size());
+    final List<Notification> encoded = new ArrayList<Notification>(
+        notifications.size());
+    ByteBuffer message;
+    byte[] record;
+    for (Notification notification : notifications)
     {
-      LOGGER.warning(getLogMessage(
-          "could not get notification file for name (" + filename + ")"));
+      message = encode(notification);
+      if (message == null)
+      {
+        metrics.error(1);
+        forgetNotifications(Collections.singletonList(notification));
+        LOGGER.warning(getLogMessage(
+            "could not encode notification (" + notification + ")"));
+        continue;
+      }
+      record = new byte[message.remaining()];
+      message.get(record);
+      records.add(record);
+      encoded.add(notification);
+    }
+    // the records are appended together or not at all
+    getJournalWriter().append(records);
+    written.addAll(encoded);
+    metrics.recordCommitLatency(System.nanoTime() - startTime);
+    metrics.filesWritten(records.size());
+    fileCount += records.size();
+    LOGGER.log(Level.INFO, getLogMessage("saved notifications to journal ("
+        + fileCount + ", " + records.size() + ")"));
+  }
+
+  /**
+   * Write the notifications. All of the notifications are written to temporary
+   * files in the notification directory, or their shard directories, before
+   * any of them are renamed, so that each rename is atomic. With batch
+   * durability the files are synced before they are renamed and each
+   * directory is synced once for the batch.
+   * 
+   * @param notifications the notifications.
+   * @param written       the list for the notifications that were written,
+   *                      which includes the notifications renamed before an
+   *                      error.
+   * @throws IOException if an I/O error occurs.
+   */
+  private void writeNotifications(List<Notification> notifications,
+      List<Notification> written) throws IOException
+  {
+    if (isJournalTransport())
+    {
+      writeJournal(notifications, written);
       return;
     }
-    final File tempFile = File.createTempFile(filename, null);
-    FileUtils.writeFile(tempFile, message.getBytes());
-    tempFile.renameTo(notificationFile);
-    LOGGER.log(Level.INFO, getLogMessage("saved notification to file ("
-        + (++fileCount) + ", " + notificationFile.getName() + ")"));
+    // code lifted from gov.usgs.earthquake.distribution.EIDSNotificationSender
+    final long startTime = System.nanoTime();
+    final Path spillPath;
+    if (BACKPRESSURE_SPILL.equals(backpressure) && isBackpressure())
+    {
+      spillPath = getSpillDir().toPath();
+      Files.createDirectories(spillPath);
+    }
+    else
+    {
+      spillPath = null;
+      // the spilled files were written first
+      restoreSpilledFiles();
+    }
+    final boolean syncFiles = !DURABILITY_NONE.equals(durability);
+    final List<Path> tempFiles = new ArrayList<Path>(notifications.size());
+    final List<Path> notificationFiles = new ArrayList<Path>(
+        notifications.size());
+    final List<Notification> encoded = new ArrayList<Notification>(
+        notifications.size());
+    final Set<Path> notificationPaths = new LinkedHashSet<Path>();
+    String filename;
+    ByteBuffer message;
+    Path notificationFile;
+    Path notificationPath;
+    Path tempFile;
+    try
+    {
+      for (Notification notification : notifications)
+      {
+        // create a unique filename
+        // the product type lets the reader schedule the file by type
+        filename = getFilename(notification.getProductId().getType());
+        // encode straight into the reused buffer
+        message = encode(notification);
+        if (message == null)
+        {
+          metrics.error(1);
+          forgetNotifications(Collections.singletonList(notification));
+          LOGGER.warning(getLogMessage(
+              "could not encode notification (" + filename + ")"));
+          continue;
+        }
+        notificationFile = (spillPath != null ? spillPath
+            : getNotificationDir(filename + NOTIFICATION_FILE_EXT).toPath())
+                .resolve(filename + NOTIFICATION_FILE_EXT);
+        // the temporary file extension is ignored by the reader
+        tempFile = notificationFile.resolveSibling(filename + TEMP_FILE_EXT);
+        tempFiles.add(tempFile);
+        writeFile(tempFile, message, syncFiles);
+        notificationFiles.add(notificationFile);
+        encoded.add(notification);
+      }
+      // commit the batch
+      for (int i = 0; i < notificationFiles.size(); i++)
+      {
+        notificationFile = notificationFiles.get(i);
+        notificationPath = notificationFile.getParent();
+        Files.move(tempFiles.get(i), notificationFile,
+            StandardCopyOption.ATOMIC_MOVE);
+        written.add(encoded.get(i));
+        if (DURABILITY_FILE.equals(durability))
+        {
+          syncDirectory(notificationPath);
+        }
+        notificationPaths.add(notificationPath);
+        LOGGER.log(Level.INFO, getLogMessage("saved notification to file ("
+            + (++fileCount) + ", " + notificationFile.getFileName() + ")"));
+      }
+      tempFiles.clear();
+      if (DURABILITY_BATCH.equals(durability))
+      {
+        for (Path path : notificationPaths)
+        {
+          syncDirectory(path);
+        }
+      }
+    }
+    finally
+    {
+      if (spillPath != null)
+      {
+        // set after the files are moved and with the restore lock held so
+        // that a restore in progress does not clear it without seeing them
+        synchronized (this)
+        {
+          spilled = true;
+        }
+      }
+      // remove any temporary files that were not committed
+      for (Path file : tempFiles)
+      {
+        Files.deleteIfExists(file);
+      }
+    }
+    final long commitTime = System.nanoTime() - startTime;
+    metrics.recordCommitLatency(commitTime);
+    metrics.filesWritten(notificationFiles.size());
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine(getLogMessage("committed " + notificationFiles.size()
+          + " notifications in " + TimeUnit.NANOSECONDS.toMicros(commitTime)
+          + " microseconds (durability " + durability + ")"));
   }
 }
@@ -7,7 +7,6 @@ import java.util.logging.Logger;
 import gov.usgs.earthquake.distribution.EIDSNotificationReceiver;
 import gov.usgs.earthquake.distribution.URLNotification;
 import gov.usgs.earthquake.distribution.URLNotificationParser;
-import gov.usgs.earthquake.distribution.URLNotificationXMLConverter;
 import gov.usgs.earthquake.eidsutil.EIDSClient;
 import gov.usgs.earthquake.eidsutil.EIDSListener;
 import gov.usgs.earthquake.eidsutil.EIDSMessageEvent;
@@ -160,7 +159,7 @@ public class EIDSWriterClient extends EIDSClient
       {
         in = StreamUtils.getInputStream(event.getMessage());
         // this is a notification message
-        URLNotification notification = URLNotificationXMLConverter.parseXML(in);
+        URLNotification notification = UtilFns.parseXml(in);
         // process the notification
         writer.processNotification(notification);
       }
@@ -188,6 +187,35 @@ public class EIDSWriterClient extends EIDSClient
     this.name = name;
   }
 
+  @Override
+  public void shutdown()
+  {
+    super.shutdown();
+    try
+    {
+      writer.shutdown();
+    }
+    catch (Exception ex)
+    {
+      LOGGER.log(Level.WARNING, getLogMessage("could not shut down writer"),
+          ex);
+    }
+  }
+
+  @Override
+  public void startup()
+  {
+    try
+    {
+      writer.startup();
+    }
+    catch (Exception ex)
+    {
+      LOGGER.log(Level.WARNING, getLogMessage("could not start writer"), ex);
+    }
+    super.startup();
+  }
+
   /**
    * Set the option value.
    * 
@@ -0,0 +1,108 @@
+package com.isti.pdl.eidsutil;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The EIDS writer metrics.
+ */
+public class EIDSWriterMetrics implements EIDSWriterMetricsMXBean
+{
+  /** The commit latency. */
+  private final LatencyHistogram commitLatency = new LatencyHistogram();
+  /** The error count. */
+  private final LongAdder errorCount = new LongAdder();
+  /** The files written. */
+  private final RateMeter filesWritten = new RateMeter();
+  /** The writer. */
+  private final EIDSWriter writer;
+
+  /**
+   * Create the EIDS writer metrics.
+   * 
+   * @param writer the writer.
+   */
+  public EIDSWriterMetrics(EIDSWriter writer)
+  {
+    this.writer = writer;
+  }
+
+  /**
+   * Record errors.
+   * 
+   * @param n the number of notifications that could not be written.
+   */
+  public void error(int n)
+  {
+    errorCount.add(n);
+  }
+
+  /**
+   * Record files written.
+   * 
+   * @param n the number of files or records written.
+   */
+  public void filesWritten(int n)
+  {
+    filesWritten.mark(n);
+  }
+
+  @Override
+  public int getBacklog()
+  {
+    return writer.getBacklog();
+  }
+
+  @Override
+  public LatencySnapshot getCommitLatency()
+  {
+    return commitLatency.getSnapshot();
+  }
+
+  @Override
+  public long getDedupeHits()
+  {
+    final NotificationDedupeCache cache = writer.getDedupeCache();
+    return cache != null ? cache.getHits() : 0;
+  }
+
+  @Override
+  public long getDedupeMisses()
+  {
+    final NotificationDedupeCache cache = writer.getDedupeCache();
+    return cache != null ? cache.getMisses() : 0;
+  }
+
+  @Override
+  public long getErrorCount()
+  {
+    return errorCount.sum();
+  }
+
+  @Override
+  public long getFilesWritten()
+  {
+    return filesWritten.getCount();
+  }
+
+  @Override
+  public double getFilesWrittenPerSecond()
+  {
+    return filesWritten.getRate();
+  }
+
+  @Override
+  public boolean isBackpressure()
+  {
+    return writer.isBackpressure();
+  }
+
+  /**
+   * Record the commit latency.
+   * 
+   * @param nanos the latency in nanoseconds.
+   */
+  public void recordCommitLatency(long nanos)
+  {
+    commitLatency.record(nanos);
+  }
+}
@@ -0,0 +1,67 @@
+package com.isti.pdl.eidsutil;
+
+/**
+ * The EIDS writer metrics management interface.
+ */
+public interface EIDSWriterMetricsMXBean
+{
+  /**
+   * Get the backlog.
+   * 
+   * @return the number of queued notifications that have not been written.
+   */
+  int getBacklog();
+
+  /**
+   * Get the commit latency, the time to write and commit a batch of
+   * notifications.
+   * 
+   * @return the commit latency in microseconds.
+   */
+  LatencySnapshot getCommitLatency();
+
+  /**
+   * Get the dedupe hit count.
+   * 
+   * @return the number of repeated notifications not written.
+   */
+  long getDedupeHits();
+
+  /**
+   * Get the dedupe miss count.
+   * 
+   * @return the number of notifications not seen before or 0 if there is no
+   *         dedupe cache.
+   */
+  long getDedupeMisses();
+
+  /**
+   * Get the error count.
+   * 
+   * @return the number of notifications that could not be written.
+   */
+  long getErrorCount();
+
+  /**
+   * Get the number of files written.
+   * 
+   * @return the number of notification files or journal records written.
+   */
+  long getFilesWritten();
+
+  /**
+   * Get the files written per second.
+   * 
+   * @return the notification files or journal records written per second
+   *         over the last minute.
+   */
+  double getFilesWrittenPerSecond();
+
+  /**
+   * Determine if there is backpressure.
+   * 
+   * @return true if the reader has signaled backpressure and it is
+   *         honored, false otherwise.
+   */
+  boolean isBackpressure();
+}
@@ -0,0 +1,82 @@
+package com.isti.pdl.eidsutil;
+
+import java.nio.file.Path;
+
+/**
+ * A file that could not be processed and is retried with an increasing
+ * delay. Retries are ordered by the time of the next attempt.
+ */
+public class FileRetry implements Comparable<FileRetry>
+{
+  /** The initial retry delay in milliseconds. */
+  private static final long RETRY_INITIAL_MS = 100;
+  /** The maximum retry delay in milliseconds. */
+  private static final long RETRY_MAX_MS = 60000;
+
+  /** The number of attempts. */
+  private final int attempts;
+  /** The file. */
+  private final Path file;
+  /** The time of the next attempt in milliseconds. */
+  private final long time;
+
+  /**
+   * Create the retry.
+   * 
+   * @param file     the file.
+   * @param attempts the number of attempts.
+   */
+  public FileRetry(Path file, int attempts)
+  {
+    this.file = file;
+    this.attempts = attempts;
+    time = System.currentTimeMillis() + Math.min(RETRY_MAX_MS,
+        RETRY_INITIAL_MS << Math.min(attempts - 1, 20));
+  }
+
+  @Override
+  public int compareTo(FileRetry o)
+  {
+    return Long.compare(time, o.time);
+  }
+
+  /**
+   * Get the number of attempts.
+   * 
+   * @return the number of attempts.
+   */
+  public int getAttempts()
+  {
+    return attempts;
+  }
+
+  /**
+   * Get the file.
+   * 
+   * @return the file.
+   */
+  public Path getFile()
+  {
+    return file;
+  }
+
+  /**
+   * Get the time of the next attempt.
+   * 
+   * @return the time of the next attempt in milliseconds.
+   */
+  public long getTime()
+  {
+    return time;
+  }
+
+  /**
+   * Create the retry for the next attempt.
+   * 
+   * @return the retry.
+   */
+  public FileRetry next()
+  {
+    return new FileRetry(file, attempts + 1);
+  }
+}
@@ -0,0 +1,321 @@
+package com.isti.pdl.eidsutil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Tails the journal segment files written by the journal writer. The segment
+ * and offset of the next record are saved in the checkpoint file so that
+ * reading resumes where it left off after a restart.
+ */
+public class JournalReader implements Closeable
+{
+  /** The maximum record length. */
+  public static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+  /** Logging object. */
+  private static final Logger LOGGER = Logger
+      .getLogger(JournalReader.class.getName());
+
+  /** The current segment channel or null if none. */
+  private FileChannel channel;
+  /** The checkpoint path. */
+  private final Path checkpointPath;
+  /** The finished segments that have not been removed. */
+  private final List<Path> completedSegments = new ArrayList<Path>();
+  /** The CRC-32. */
+  private final CRC32 crc = new CRC32();
+  /** The record header. */
+  private final ByteBuffer header = ByteBuffer
+      .allocate(JournalWriter.HEADER_LENGTH);
+  /** The notification file prefix. */
+  private final String notificationFilePrefix;
+  /** The notification path. */
+  private final Path notificationPath;
+  /** The offset of the next record in the current segment. */
+  private long offset;
+  /** The current segment or null if none. */
+  private Path segment;
+  /** The segments. */
+  private final List<Path> segments = new ArrayList<Path>();
+
+  /**
+   * Create the journal reader.
+   * 
+   * @param notificationPath       the notification path.
+   * @param notificationFilePrefix the notification file prefix.
+   * @param checkpointPath         the checkpoint path.
+   * @throws IOException if an I/O error occurs.
+   */
+  public JournalReader(Path notificationPath, String notificationFilePrefix,
+      Path checkpointPath) throws IOException
+  {
+    this.notificationPath = notificationPath;
+    this.notificationFilePrefix = notificationFilePrefix;
+    this.checkpointPath = checkpointPath;
+    readCheckpoint();
+  }
+
+  /**
+   * Save the checkpoint.
+   * 
+   * @throws IOException if an I/O error occurs.
+   */
+  public void checkpoint() throws IOException
+  {
+    if (segment == null)
+    {
+      return;
+    }
+    final Path tempPath = checkpointPath
+        .resolveSibling(checkpointPath.getFileName() + ".tmp");
+    Files.write(tempPath, (segment.getFileName() + " " + offset)
+        .getBytes(StandardCharsets.UTF_8));
+    Files.move(tempPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    closeSegment();
+  }
+
+  /**
+   * Close the current segment.
+   * 
+   * @throws IOException if an I/O error occurs.
+   */
+  private void closeSegment() throws IOException
+  {
+    final FileChannel c = channel;
+    channel = null;
+    if (c != null)
+    {
+      c.close();
+    }
+  }
+
+  /**
+   * Get the segments that have been completely read. The caller should remove
+   * the segments after the checkpoint has been saved and then clear the list.
+   * 
+   * @return the completed segments.
+   */
+  public List<Path> getCompletedSegments()
+  {
+    return completedSegments;
+  }
+
+  /**
+   * Get the next segment after the current segment.
+   * 
+   * @return the next segment or null if none.
+   * @throws IOException if an I/O error occurs.
+   */
+  private Path getNextSegment() throws IOException
+  {
+    segments.clear();
+    UtilFns.getJournalSegments(notificationPath, notificationFilePrefix,
+        segments);
+    for (Path path : segments)
+    {
+      if (segment == null || path.getFileName().toString()
+          .compareTo(segment.getFileName().toString()) > 0)
+      {
+        return path;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Get the log message.
+   * 
+   * @param message the message.
+   * @return the log message.
+   */
+  private String getLogMessage(String message)
+  {
+    return "[" + JournalReader.class.getSimpleName() + "] " + message;
+  }
+
+  /**
+   * Advance to the next segment if there is one.
+   * 
+   * @return true if advanced to the next segment, false otherwise.
+   * @throws IOException if an I/O error occurs.
+   */
+  private boolean nextSegment() throws IOException
+  {
+    final Path next = getNextSegment();
+    if (next == null)
+    {
+      return false;
+    }
+    closeSegment();
+    if (segment != null)
+    {
+      completedSegments.add(segment);
+    }
+    segment = next;
+    offset = 0;
+    return true;
+  }
+
+  /**
+   * Read the next record.
+   * 
+   * @return the next record or null if none is available yet.
+   * @throws IOException if an I/O error occurs.
+   */
+  public byte[] readRecord() throws IOException
+  {
+    for (;;)
+    {
+      if (channel == null)
+      {
+        if (segment == null && !nextSegment())
+        {
+          return null;
+        }
+        try
+        {
+          channel = FileChannel.open(segment, StandardOpenOption.READ);
+        }
+        catch (NoSuchFileException ex)
+        {
+          LOGGER.warning(getLogMessage("segment removed (" + segment + ")"));
+          if (!nextSegment())
+          {
+            segment = null;
+            return null;
+          }
+          continue;
+        }
+      }
+      byte[] record = readRecord(channel);
+      if (record != null)
+      {
+        return record;
+      }
+      // the current segment is finished once there is a newer one
+      if (getNextSegment() == null)
+      {
+        return null;
+      }
+      // read anything appended before the writer rolled to the newer segment
+      record = readRecord(channel);
+      if (record != null)
+      {
+        return record;
+      }
+      if (offset != channel.size())
+      {
+        LOGGER.warning(getLogMessage("skipping incomplete record (" + segment
+            + ", " + offset + ", " + channel.size() + ")"));
+      }
+      nextSegment();
+    }
+  }
+
+  /**
+   * Read the next complete record from the channel.
+   * 
+   * @param c the channel.
+   * @return the record or null if a complete record is not available.
+   * @throws IOException if an I/O error occurs.
+   */
+  private byte[] readRecord(FileChannel c) throws IOException
+  {
+    final long size = c.size();
+    if (size - offset < JournalWriter.HEADER_LENGTH)
+    {
+      return null;
+    }
+    ((Buffer) header).clear();
+    while (header.hasRemaining())
+    {
+      if (c.read(header, offset + header.position()) < 0)
+      {
+        return null;
+      }
+    }
+    ((Buffer) header).flip();
+    final int length = header.getInt();
+    final int checksum = header.getInt();
+    if (length < 0 || length > MAX_RECORD_LENGTH
+        || size - offset - JournalWriter.HEADER_LENGTH < length)
+    {
+      return null;
+    }
+    final ByteBuffer buffer = ByteBuffer.allocate(length);
+    final long position = offset + JournalWriter.HEADER_LENGTH;
+    while (buffer.hasRemaining())
+    {
+      if (c.read(buffer, position + buffer.position()) < 0)
+      {
+        return null;
+      }
+    }
+    final byte[] record = buffer.array();
+    crc.reset();
+    crc.update(record, 0, record.length);
+    if ((int) crc.getValue() != checksum)
+    {
+      return null;
+    }
+    offset = position + length;
+    return record;
+  }
+
+  /**
+   * Read the checkpoint.
+   * 
+   * @throws IOException if an I/O error occurs.
+   */
+  private void readCheckpoint() throws IOException
+  {
+    if (!Files.exists(checkpointPath))
+    {
+      return;
+    }
+    final String[] values = new String(Files.readAllBytes(checkpointPath),
+        StandardCharsets.UTF_8).trim().split(" ");
+    if (values.length != 2)
+    {
+      LOGGER.warning(getLogMessage("invalid checkpoint (" + checkpointPath
+          + ")"));
+      return;
+    }
+    final Path path = notificationPath.resolve(values[0]);
+    if (Files.exists(path))
+    {
+      segment = path;
+      offset = Long.parseLong(values[1]);
+    }
+    else
+    {
+      // the segment was finished, start with the next one
+      segment = path;
+      offset = 0;
+      if (!nextSegment())
+      {
+        segment = null;
+      }
+      completedSegments.clear();
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package com.isti.pdl.eidsutil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Appends notification records to rolling journal segment files. Each record
+ * is the record length and CRC-32 followed by the record bytes. A new segment
+ * is always started when the writer is opened so that a record left partially
+ * written by a previous writer is never appended to. There must only be one
+ * journal writer for a notification directory.
+ */
+public class JournalWriter implements Closeable
+{
+  /** The record header length. */
+  public static final int HEADER_LENGTH = 8;
+
+  /** The current segment channel or null if none. */
+  private FileChannel channel;
+  /** The CRC-32. */
+  private final CRC32 crc = new CRC32();
+  /** The notification file prefix. */
+  private final String notificationFilePrefix;
+  /** The notification path. */
+  private final Path notificationPath;
+  /** The current segment number. */
+  private long segment = -1;
+  /** The segment size in bytes. */
+  private final long segmentSize;
+  /** True to sync each append to the storage device. */
+  private final boolean sync;
+
+  /**
+   * Create the journal writer.
+   * 
+   * @param notificationPath       the notification path.
+   * @param notificationFilePrefix the notification file prefix.
+   * @param segmentSize            the segment size in bytes.
+   * @param sync                   true to sync each append to the storage
+   *                               device.
+   */
+  public JournalWriter(Path notificationPath, String notificationFilePrefix,
+      long segmentSize, boolean sync)
+  {
+    this.notificationPath = notificationPath;
+    this.notificationFilePrefix = notificationFilePrefix;
+    this.segmentSize = segmentSize;
+    this.sync = sync;
+  }
+
+  /**
+   * Append the records to the journal. If the records could not be written
+   * the segment is closed so that the next append starts a new segment.
+   * 
+   * @param records the records.
+   * @throws IOException if an I/O error occurs.
+   */
+  public synchronized void append(List<byte[]> records) throws IOException
+  {
+    if (records.isEmpty())
+    {
+      return;
+    }
+    if (channel == null)
+    {
+      openSegment();
+    }
+    final ByteBuffer[] buffers = new ByteBuffer[records.size() * 2];
+    int i = 0;
+    for (byte[] record : records)
+    {
+      crc.reset();
+      crc.update(record, 0, record.length);
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+      header.putInt(record.length).putInt((int) crc.getValue());
+      ((Buffer) header).flip();
+      buffers[i++] = header;
+      buffers[i++] = ByteBuffer.wrap(record);
+    }
+    final ByteBuffer last = buffers[buffers.length - 1];
+    try
+    {
+      while (last.hasRemaining())
+      {
+        channel.write(buffers);
+      }
+      if (sync)
+      {
+        channel.force(false);
+      }
+    }
+    catch (IOException ex)
+    {
+      // a partial record stops the reader until there is a newer segment, so
+      // never append after it
+      closeSegment();
+      throw ex;
+    }
+    if (channel.size() >= segmentSize)
+    {
+      closeSegment();
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException
+  {
+    closeSegment();
+  }
+
+  /**
+   * Close the current segment.
+   * 
+   * @throws IOException if an I/O error occurs.
+   */
+  private void closeSegment() throws IOException
+  {
+    final FileChannel c = channel;
+    channel = null;
+    if (c != null)
+    {
+      c.close();
+    }
+  }
+
+  /**
+   * Open the next segment.
+   * 
+   * @throws IOException if an I/O error occurs.
+   */
+  private void openSegment() throws IOException
+  {
+    if (segment < 0)
+    {
+      // start after any existing segments
+      final List<Path> segments = UtilFns.getJournalSegments(notificationPath,
+          notificationFilePrefix, new ArrayList<Path>());
+      if (!segments.isEmpty())
+      {
+        segment = UtilFns.getJournalSegmentNumber(notificationFilePrefix,
+            segments.get(segments.size() - 1));
+      }
+    }
+    segment++;
+    channel = FileChannel.open(
+        notificationPath.resolve(
+            UtilFns.getJournalSegmentName(notificationFilePrefix, segment)),
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND);
+    if (sync)
+    {
+      // sync the directory so that the new segment is durable
+      try (FileChannel dir = FileChannel.open(notificationPath,
+          StandardOpenOption.READ))
+      {
+        dir.force(true);
+      }
+      catch (IOException ex)
+      {
+        // not supported on all platforms
+      }
+    }
+  }
+}
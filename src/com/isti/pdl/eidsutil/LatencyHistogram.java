@@ -0,0 +1,91 @@
+package com.isti.pdl.eidsutil;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock free latency histogram with a bucket for each power of two
+ * microseconds. Percentiles are reported as the upper bound of the bucket, or
+ * the maximum if less, so they are at most twice the actual value.
+ */
+public class LatencyHistogram
+{
+  /** The number of buckets. */
+  private static final int BUCKETS = 40;
+
+  /** The count for each bucket. */
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  /** The maximum latency in microseconds. */
+  private final AtomicLong max = new AtomicLong();
+  /** The total latency in microseconds. */
+  private final LongAdder total = new LongAdder();
+
+  /**
+   * Get the latency in microseconds at the percentile.
+   * 
+   * @param counts     the bucket counts.
+   * @param count      the total count.
+   * @param percentile the percentile (0 to 100).
+   * @return the latency in microseconds.
+   */
+  private static long getPercentile(long[] counts, long count,
+      double percentile)
+  {
+    if (count == 0)
+    {
+      return 0;
+    }
+    final long rank = (long) Math.ceil(count * percentile / 100);
+    long sum = 0;
+    for (int i = 0; i < counts.length; i++)
+    {
+      sum += counts[i];
+      if (sum >= rank)
+      {
+        return (1L << i) - 1;
+      }
+    }
+    return (1L << (counts.length - 1)) - 1;
+  }
+
+  /**
+   * Get a snapshot of the histogram.
+   * 
+   * @return the snapshot.
+   */
+  public LatencySnapshot getSnapshot()
+  {
+    final long[] counts = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      counts[i] = buckets.get(i);
+      count += counts[i];
+    }
+    // the bucket upper bound is more than the maximum for the last bucket
+    final long m = max.get();
+    return new LatencySnapshot(count,
+        count == 0 ? 0 : total.sum() / (double) count, m,
+        Math.min(m, getPercentile(counts, count, 50)),
+        Math.min(m, getPercentile(counts, count, 90)),
+        Math.min(m, getPercentile(counts, count, 99)),
+        Math.min(m, getPercentile(counts, count, 99.9)));
+  }
+
+  /**
+   * Record the latency.
+   * 
+   * @param nanos the latency in nanoseconds.
+   */
+  public void record(long nanos)
+  {
+    final long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+    // bucket i holds the latencies less than 2^i microseconds
+    buckets.incrementAndGet(
+        Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+    total.add(micros);
+    max.accumulateAndGet(micros, Math::max);
+  }
+}
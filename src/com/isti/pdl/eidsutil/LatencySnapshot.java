@@ -0,0 +1,126 @@
+package com.isti.pdl.eidsutil;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A snapshot of a latency histogram. All latencies are in microseconds.
+ */
+public class LatencySnapshot
+{
+  /** The count. */
+  private final long count;
+  /** The maximum latency. */
+  private final long max;
+  /** The mean latency. */
+  private final double mean;
+  /** The 50th percentile latency. */
+  private final long p50;
+  /** The 90th percentile latency. */
+  private final long p90;
+  /** The 99th percentile latency. */
+  private final long p99;
+  /** The 99.9th percentile latency. */
+  private final long p999;
+
+  /**
+   * Create the latency snapshot.
+   * 
+   * @param count the count.
+   * @param mean  the mean latency.
+   * @param max   the maximum latency.
+   * @param p50   the 50th percentile latency.
+   * @param p90   the 90th percentile latency.
+   * @param p99   the 99th percentile latency.
+   * @param p999  the 99.9th percentile latency.
+   */
+  @ConstructorProperties(
+  { "count", "mean", "max", "p50", "p90", "p99", "p999" })
+  public LatencySnapshot(long count, double mean, long max, long p50, long p90,
+      long p99, long p999)
+  {
+    this.count = count;
+    this.mean = mean;
+    this.max = max;
+    this.p50 = p50;
+    this.p90 = p90;
+    this.p99 = p99;
+    this.p999 = p999;
+  }
+
+  /**
+   * Get the count.
+   * 
+   * @return the number of latencies recorded.
+   */
+  public long getCount()
+  {
+    return count;
+  }
+
+  /**
+   * Get the maximum latency.
+   * 
+   * @return the maximum latency in microseconds.
+   */
+  public long getMax()
+  {
+    return max;
+  }
+
+  /**
+   * Get the mean latency.
+   * 
+   * @return the mean latency in microseconds.
+   */
+  public double getMean()
+  {
+    return mean;
+  }
+
+  /**
+   * Get the 50th percentile latency.
+   * 
+   * @return the latency in microseconds.
+   */
+  public long getP50()
+  {
+    return p50;
+  }
+
+  /**
+   * Get the 90th percentile latency.
+   * 
+   * @return the latency in microseconds.
+   */
+  public long getP90()
+  {
+    return p90;
+  }
+
+  /**
+   * Get the 99th percentile latency.
+   * 
+   * @return the latency in microseconds.
+   */
+  public long getP99()
+  {
+    return p99;
+  }
+
+  /**
+   * Get the 99.9th percentile latency.
+   * 
+   * @return the latency in microseconds.
+   */
+  public long getP999()
+  {
+    return p999;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "count=" + count + ", mean=" + mean + ", max=" + max + ", p50="
+        + p50 + ", p90=" + p90 + ", p99=" + p99 + ", p999=" + p999;
+  }
+}
@@ -0,0 +1,920 @@
+package com.isti.pdl.eidsutil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Archives processed files on a background thread by appending them to
+ * rolling compressed tar bundles rather than keeping a file for each
+ * notification. A gzip compressed tar file is used rather than a zip file
+ * since the notification files are small and similar, so compressing across
+ * files is much smaller. Each bundle holds the files archived during a period
+ * and is named with the notification file prefix and the UTC start of the
+ * period. A bundle is written to a temporary file that is renamed when the
+ * period ends. A file is only deleted after it has been written to the bundle
+ * and the bundle has been flushed and synced, and a temporary bundle left by
+ * a process that stopped is recovered at startup, so no file is lost. Files
+ * that could not be archived are retried with an increasing delay. Each file
+ * is streamed into the bundle so that large files such as journal segments
+ * are not read into memory. After an error writing a file the bundle is
+ * rolled back to the last commit by ending the compressed data there and
+ * starting a new gzip member. If that fails nothing more is written to the
+ * bundle and it is recovered at the next startup, so a file may then be in
+ * two bundles.
+ */
+public class NotificationArchiver implements Runnable
+{
+  /**
+   * Handles the files read from a bundle.
+   */
+  public interface BundleHandler
+  {
+    /**
+     * Handle a file read from a bundle.
+     * 
+     * @param name  the file name.
+     * @param mtime the modification time in milliseconds.
+     * @param data  the file contents.
+     * @throws IOException if an I/O error occurs.
+     */
+    void handle(String name, long mtime, byte[] data) throws IOException;
+  }
+
+  /**
+   * The compressed output stream for a bundle, which keeps the checksum and
+   * size of the data written so that the gzip member can be ended at a flush.
+   */
+  private static class BundleStream extends GZIPOutputStream
+  {
+    /** The number of bytes written. */
+    private long size;
+
+    /**
+     * Create the bundle stream.
+     * 
+     * @param out the output stream.
+     * @throws IOException if an I/O error occurs.
+     */
+    BundleStream(OutputStream out) throws IOException
+    {
+      super(out, 8192, true);
+    }
+
+    /**
+     * Discard the stream without writing the rest of the compressed data.
+     */
+    void discard()
+    {
+      def.end();
+    }
+
+    /**
+     * Get the CRC-32 of the data written.
+     * 
+     * @return the CRC-32.
+     */
+    long getCrc()
+    {
+      return crc.getValue();
+    }
+
+    /**
+     * Get the number of bytes written.
+     * 
+     * @return the number of bytes.
+     */
+    long getSize()
+    {
+      return size;
+    }
+
+    @Override
+    public synchronized void write(byte[] buf, int off, int len)
+        throws IOException
+    {
+      super.write(buf, off, len);
+      size += len;
+    }
+  }
+
+  /** The bundle file extension. */
+  public static final String BUNDLE_FILE_EXT = ".tar.gz";
+  /** Logging object. */
+  private static final Logger LOGGER = Logger
+      .getLogger(NotificationArchiver.class.getName());
+  /** The maximum time to wait for a file before checking for shutdown. */
+  private static final long POLL_MS = 1000;
+  /** The path queued to wake the archive thread at shutdown. */
+  private static final Path SHUTDOWN_PATH = Paths.get("");
+  /** The tar block size. */
+  private static final int TAR_BLOCK_SIZE = 512;
+  /** The tar magic and version. */
+  private static final byte[] TAR_MAGIC =
+  { 'u', 's', 't', 'a', 'r', 0, '0', '0' };
+  /** The tar name length. */
+  private static final int TAR_NAME_LENGTH = 100;
+  /** The bundle period start time format. */
+  private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter
+      .ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneOffset.UTC);
+
+  /**
+   * Copy the specified number of bytes from the input to the output, padding
+   * with zeros if the input ends early, and then pad to the tar block size.
+   * 
+   * @param in   the input stream.
+   * @param out  the output stream.
+   * @param size the number of bytes.
+   * @throws IOException if an I/O error occurs.
+   */
+  private static void copyTarData(InputStream in, OutputStream out, long size)
+      throws IOException
+  {
+    final byte[] b = new byte[8192];
+    long remaining = size;
+    int n;
+    while (remaining > 0
+        && (n = in.read(b, 0, (int) Math.min(b.length, remaining))) > 0)
+    {
+      out.write(b, 0, n);
+      remaining -= n;
+    }
+    Arrays.fill(b, (byte) 0);
+    remaining += Math.floorMod(-size, (long) TAR_BLOCK_SIZE);
+    while (remaining > 0)
+    {
+      n = (int) Math.min(b.length, remaining);
+      out.write(b, 0, n);
+      remaining -= n;
+    }
+  }
+
+  /**
+   * Create the output stream for a new bundle. Flushing the stream flushes the
+   * compressed data so that the bundle may be read up to that point.
+   * 
+   * @param channel the channel for the new file.
+   * @return the output stream.
+   * @throws IOException if an I/O error occurs.
+   */
+  private static BundleStream newBundleStream(FileChannel channel)
+      throws IOException
+  {
+    return new BundleStream(
+        new BufferedOutputStream(Channels.newOutputStream(channel)));
+  }
+
+  /**
+   * Open the channel for a new bundle.
+   * 
+   * @param file the file.
+   * @return the channel.
+   * @throws IOException if an I/O error occurs.
+   */
+  private static FileChannel openBundleChannel(Path file) throws IOException
+  {
+    return FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Put the octal value in the tar header field.
+   * 
+   * @param header the header.
+   * @param offset the field offset.
+   * @param length the field length including the terminating zero.
+   * @param value  the value.
+   */
+  private static void putTarOctal(byte[] header, int offset, int length,
+      long value)
+  {
+    final String s = Long.toOctalString(value);
+    int i = offset;
+    for (int n = s.length(); n < length - 1; n++)
+    {
+      header[i++] = '0';
+    }
+    for (int n = 0; n < s.length(); n++)
+    {
+      header[i++] = (byte) s.charAt(n);
+    }
+    header[i] = 0;
+  }
+
+  /**
+   * Read the files in the bundle. A temporary bundle may be read up to the
+   * last file that was flushed.
+   * 
+   * @param file    the bundle file.
+   * @param handler the handler for the files.
+   * @return the number of files read.
+   * @throws IOException if an I/O error occurs, including the end of a
+   *                     bundle that was not completely written.
+   */
+  public static int readBundle(Path file, BundleHandler handler)
+      throws IOException
+  {
+    int count = 0;
+    try (InputStream in = new GZIPInputStream(
+        new BufferedInputStream(Files.newInputStream(file))))
+    {
+      final byte[] header = new byte[TAR_BLOCK_SIZE];
+      String name;
+      long size;
+      long mtime;
+      int end;
+      while (readFully(in, header) && header[0] != 0)
+      {
+        for (end = 0; end < TAR_NAME_LENGTH && header[end] != 0; end++)
+        {
+        }
+        name = new String(header, 0, end, StandardCharsets.UTF_8);
+        try
+        {
+          size = Long.parseLong(
+              new String(header, 124, 11, StandardCharsets.US_ASCII).trim(),
+              8);
+          mtime = Long.parseLong(
+              new String(header, 136, 11, StandardCharsets.US_ASCII).trim(),
+              8) * 1000;
+        }
+        catch (NumberFormatException ex)
+        {
+          throw new IOException("invalid bundle header (" + name + ")");
+        }
+        if (size > Integer.MAX_VALUE - 8)
+        {
+          throw new IOException("file too large to read from bundle (" + name
+              + ")");
+        }
+        final byte[] data = new byte[(int) size];
+        if (!readFully(in, data))
+        {
+          break;
+        }
+        in.skip(Math.floorMod(-size, (long) TAR_BLOCK_SIZE));
+        handler.handle(name, mtime, data);
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Read the bytes.
+   * 
+   * @param in the input stream.
+   * @param b  the bytes.
+   * @return true if all of the bytes were read, false if the end of the
+   *         stream was reached.
+   * @throws IOException if an I/O error occurs.
+   */
+  private static boolean readFully(InputStream in, byte[] b)
+      throws IOException
+  {
+    int n;
+    for (int off = 0; off < b.length; off += n)
+    {
+      if ((n = in.read(b, off, b.length - off)) < 0)
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Write the tar header for a regular file.
+   * 
+   * @param out   the output stream.
+   * @param name  the file name.
+   * @param size  the file size in bytes.
+   * @param mtime the modification time in milliseconds.
+   * @throws IOException if the name is too long or an I/O error occurs.
+   */
+  private static void writeTarHeader(OutputStream out, String name, long size,
+      long mtime) throws IOException
+  {
+    final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    if (nameBytes.length > TAR_NAME_LENGTH)
+    {
+      throw new IOException("name too long for bundle (" + name + ")");
+    }
+    final byte[] header = new byte[TAR_BLOCK_SIZE];
+    System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+    putTarOctal(header, 100, 8, 0644);
+    putTarOctal(header, 108, 8, 0);
+    putTarOctal(header, 116, 8, 0);
+    putTarOctal(header, 124, 12, size);
+    putTarOctal(header, 136, 12, mtime / 1000);
+    header[156] = '0';
+    System.arraycopy(TAR_MAGIC, 0, header, 257, TAR_MAGIC.length);
+    // the checksum is calculated with the checksum field as spaces
+    Arrays.fill(header, 148, 156, (byte) ' ');
+    long checksum = 0;
+    for (byte b : header)
+    {
+      checksum += b & 0xff;
+    }
+    putTarOctal(header, 148, 7, checksum);
+    out.write(header);
+  }
+
+  /** The archive path. */
+  private final Path archivePath;
+  /** The files that have been written to the bundle but not deleted. */
+  private final List<Path> batch = new ArrayList<Path>();
+  /** The open bundle or null if none. */
+  private BundleStream bundle;
+  /** The channel of the open bundle. */
+  private FileChannel bundleChannel;
+  /** The CRC-32 of the data in the gzip member at the last commit. */
+  private long bundleCommitCrc;
+  /** The offset of the bundle at the last commit. */
+  private long bundleCommitOffset;
+  /** The size of the data in the gzip member at the last commit. */
+  private long bundleCommitSize;
+  /** The end time of the open bundle period. */
+  private long bundleEndTime;
+  /** The open bundle file. */
+  private Path bundleFile;
+  /** The open bundle temporary file. */
+  private Path bundleTempFile;
+  /** The name. */
+  private final String name;
+  /** The files that have been queued but not deleted. */
+  private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+  /** The bundle period in milliseconds. */
+  private final long periodMs;
+  /** The bundle file prefix. */
+  private final String prefix;
+  /** The queued files. */
+  private final BlockingQueue<Path> queue = new LinkedBlockingQueue<Path>();
+  /** The files to retry. */
+  private final PriorityQueue<FileRetry> retries = //
+      new PriorityQueue<FileRetry>();
+  /** The retention period in milliseconds or 0 to keep all bundles. */
+  private final long retentionMs;
+  /** The running flag. */
+  private volatile boolean running;
+  /** The archive thread. */
+  private Thread thread;
+
+  /**
+   * Create the notification archiver.
+   * 
+   * @param name        the name used for logging and the archive thread.
+   * @param archiveDir  the archive directory.
+   * @param prefix      the bundle file prefix.
+   * @param periodMs    the bundle period in milliseconds.
+   * @param retentionMs the retention period in milliseconds or 0 to keep all
+   *                    bundles.
+   */
+  public NotificationArchiver(String name, File archiveDir, String prefix,
+      long periodMs, long retentionMs)
+  {
+    this.name = name;
+    this.archivePath = archiveDir.toPath();
+    this.prefix = prefix;
+    this.periodMs = Math.max(1, periodMs);
+    this.retentionMs = Math.max(0, retentionMs);
+  }
+
+  /**
+   * Abandon the open bundle after an error writing to it. Nothing more is
+   * written to the bundle since it may end with part of a file, the files in
+   * the batch are retried in a new bundle and the temporary bundle is
+   * recovered up to the last complete file at the next startup.
+   */
+  private void abandonBundle()
+  {
+    if (bundle == null)
+    {
+      return;
+    }
+    try
+    {
+      bundle.close();
+    }
+    catch (IOException ex)
+    {
+    }
+    bundle = null;
+    LOGGER.warning(getLogMessage("abandoned bundle (" + bundleTempFile
+        + "), it is recovered at the next startup"));
+    for (Path file : batch)
+    {
+      retries.add(new FileRetry(file, 1));
+    }
+    batch.clear();
+  }
+
+  /**
+   * Queue the file to be archived and then deleted.
+   * 
+   * @param file the file.
+   */
+  public void archive(Path file)
+  {
+    pending.add(file);
+    queue.add(file);
+  }
+
+  /**
+   * Close the open bundle if any and rename it to the bundle file.
+   */
+  private void closeBundle()
+  {
+    if (bundle == null)
+    {
+      return;
+    }
+    try
+    {
+      // the end of the tar file is marked by two zero blocks
+      bundle.write(new byte[TAR_BLOCK_SIZE * 2]);
+      bundle.flush();
+      bundleChannel.force(false);
+      bundle.close();
+      Files.move(bundleTempFile, bundleFile, StandardCopyOption.ATOMIC_MOVE);
+      if (LOGGER.isLoggable(Level.FINE))
+        LOGGER.fine(getLogMessage("closed bundle (" + bundleFile + ")"));
+    }
+    catch (IOException ex)
+    {
+      LOGGER.warning(getLogMessage(
+          "could not close bundle (" + bundleTempFile + "): " + ex));
+    }
+    bundle = null;
+  }
+
+  /**
+   * Flush and sync the bundle and then delete the files in the batch. A file
+   * that has not been written to the bundle is kept so that it is archived
+   * again after a restart.
+   */
+  private void commitBatch()
+  {
+    if (batch.isEmpty())
+    {
+      return;
+    }
+    try
+    {
+      bundle.flush();
+      bundleChannel.force(false);
+      markCommit();
+      deleteFiles();
+    }
+    catch (IOException ex)
+    {
+      LOGGER.warning(getLogMessage("could not flush bundle: " + ex));
+      abandonBundle();
+    }
+  }
+
+  /**
+   * Delete the bundles that are older than the retention period.
+   */
+  private void deleteExpiredBundles()
+  {
+    if (retentionMs == 0)
+    {
+      return;
+    }
+    final long expireTime = System.currentTimeMillis() - retentionMs;
+    try
+    {
+      for (Path file : getBundleFiles(BUNDLE_FILE_EXT))
+      {
+        if (Files.getLastModifiedTime(file).toMillis() < expireTime)
+        {
+          Files.deleteIfExists(file);
+          LOGGER.info(getLogMessage("deleted expired bundle (" + file + ")"));
+        }
+      }
+    }
+    catch (IOException ex)
+    {
+      LOGGER.warning(getLogMessage("could not delete expired bundles: " + ex));
+    }
+  }
+
+  /**
+   * Delete the files in the batch that have been written to the bundle.
+   */
+  private void deleteFiles()
+  {
+    for (Path file : batch)
+    {
+      try
+      {
+        Files.deleteIfExists(file);
+      }
+      catch (IOException ex)
+      {
+        LOGGER.warning(
+            getLogMessage("could not delete file (" + file + "): " + ex));
+      }
+      pending.remove(file);
+    }
+    batch.clear();
+  }
+
+  /**
+   * Get the number of files that have been queued but not archived.
+   * 
+   * @return the number of files.
+   */
+  public int getBacklog()
+  {
+    return pending.size();
+  }
+
+  /**
+   * Get the bundle files.
+   * 
+   * @param ext the file extension.
+   * @return the bundle files sorted by name.
+   * @throws IOException if an I/O error occurs.
+   */
+  private List<Path> getBundleFiles(String ext) throws IOException
+  {
+    final List<Path> files = new ArrayList<Path>();
+    try (Stream<Path> stream = Files.list(archivePath))
+    {
+      stream.forEach(file -> {
+        final String filename = file.getFileName().toString();
+        if (filename.startsWith(prefix) && filename.endsWith(ext))
+        {
+          files.add(file);
+        }
+      });
+    }
+    Collections.sort(files);
+    return files;
+  }
+
+  /**
+   * Get the log message.
+   * 
+   * @param message the message.
+   * @return the log message.
+   */
+  private String getLogMessage(String message)
+  {
+    return "[" + name + "] " + message;
+  }
+
+  /**
+   * Get a bundle file that does not exist.
+   * 
+   * @param filename the filename without the bundle file extension.
+   * @return the bundle file.
+   */
+  private Path getUniqueBundleFile(String filename)
+  {
+    Path file = archivePath.resolve(filename + BUNDLE_FILE_EXT);
+    // a bundle for the same period may exist after a restart
+    for (int i = 1; Files.exists(file) || Files.exists(
+        file.resolveSibling(file.getFileName() + EIDSConst.TEMP_FILE_EXT)); i++)
+    {
+      file = archivePath.resolve(filename + "_" + i + BUNDLE_FILE_EXT);
+    }
+    return file;
+  }
+
+  /**
+   * Determine if the file has been queued but not archived.
+   * 
+   * @param file the file.
+   * @return true if the file has been queued but not archived.
+   */
+  public boolean isPending(Path file)
+  {
+    return pending.contains(file);
+  }
+
+  /**
+   * Mark the end of the flushed data as the last commit so that the bundle
+   * can be rolled back to it.
+   * 
+   * @throws IOException if an I/O error occurs.
+   */
+  private void markCommit() throws IOException
+  {
+    bundleCommitOffset = bundleChannel.position();
+    bundleCommitCrc = bundle.getCrc();
+    bundleCommitSize = bundle.getSize();
+  }
+
+  /**
+   * Create a new bundle for the period containing the time.
+   * 
+   * @param time the time in milliseconds.
+   * @throws IOException if an I/O error occurs.
+   */
+  private void openBundle(long time) throws IOException
+  {
+    final long startTime = time - Math.floorMod(time, periodMs);
+    bundleEndTime = startTime + periodMs;
+    bundleFile = getUniqueBundleFile(
+        prefix + TIME_FORMAT.format(Instant.ofEpochMilli(startTime)));
+    bundleTempFile = bundleFile
+        .resolveSibling(bundleFile.getFileName() + EIDSConst.TEMP_FILE_EXT);
+    bundleChannel = openBundleChannel(bundleTempFile);
+    final BundleStream stream = newBundleStream(bundleChannel);
+    // write the gzip header so that there is a commit to roll back to
+    stream.flush();
+    bundle = stream;
+    markCommit();
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine(getLogMessage("opened bundle (" + bundleFile + ")"));
+    deleteExpiredBundles();
+  }
+
+  /**
+   * Recover the temporary bundles left by a process that stopped. The files
+   * are read up to the first incomplete file and written to a new bundle.
+   */
+  private void recoverBundles()
+  {
+    try
+    {
+      for (Path tempFile : getBundleFiles(
+          BUNDLE_FILE_EXT + EIDSConst.TEMP_FILE_EXT))
+      {
+        final String filename = tempFile.getFileName().toString();
+        final Path file = getUniqueBundleFile(filename.substring(0,
+            filename.length() - BUNDLE_FILE_EXT.length()
+                - EIDSConst.TEMP_FILE_EXT.length())
+            + "_recovered");
+        final int[] count =
+        { 0 };
+        try (FileChannel channel = openBundleChannel(file);
+            OutputStream out = newBundleStream(channel))
+        {
+          try
+          {
+            readBundle(tempFile, (name, mtime, data) -> {
+              writeTarHeader(out, name, data.length, mtime);
+              copyTarData(new ByteArrayInputStream(data), out, data.length);
+              count[0]++;
+            });
+          }
+          catch (IOException ex)
+          {
+            // the rest of the bundle was not written
+          }
+          out.write(new byte[TAR_BLOCK_SIZE * 2]);
+          out.flush();
+          // the recovered bundle must be durable before the temporary one
+          // is deleted
+          channel.force(false);
+        }
+        Files.delete(tempFile);
+        LOGGER.info(getLogMessage(
+            "recovered " + count[0] + " files from bundle (" + tempFile + ")"));
+      }
+    }
+    catch (IOException ex)
+    {
+      LOGGER.warning(getLogMessage("could not recover bundles: " + ex));
+    }
+  }
+
+  /**
+   * Roll the bundle back to the last commit after an error writing a file to
+   * it. The last commit is at a flush, so the gzip member is ended there with
+   * an empty final block and the trailer and a new member is started. The
+   * files written since the last commit are retried. If the bundle could not
+   * be rolled back it is abandoned.
+   */
+  private void rollbackBundle()
+  {
+    if (bundle == null)
+    {
+      return;
+    }
+    try
+    {
+      final ByteBuffer trailer = ByteBuffer.allocate(10)
+          .order(ByteOrder.LITTLE_ENDIAN);
+      trailer.put((byte) 3).put((byte) 0);
+      trailer.putInt((int) bundleCommitCrc).putInt((int) bundleCommitSize);
+      trailer.flip();
+      bundleChannel.truncate(bundleCommitOffset);
+      bundleChannel.position(bundleCommitOffset);
+      while (trailer.hasRemaining())
+      {
+        bundleChannel.write(trailer);
+      }
+      // the old stream is not closed since that would write the rest of it
+      bundle.discard();
+      bundle = newBundleStream(bundleChannel);
+      bundle.flush();
+      bundleChannel.force(false);
+      markCommit();
+    }
+    catch (IOException ex)
+    {
+      LOGGER.warning(getLogMessage(
+          "could not roll back bundle (" + bundleTempFile + "): " + ex));
+      abandonBundle();
+      return;
+    }
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine(getLogMessage("rolled back bundle (" + bundleTempFile
+          + ", " + batch.size() + " files retried)"));
+    for (Path file : batch)
+    {
+      retries.add(new FileRetry(file, 1));
+    }
+    batch.clear();
+  }
+
+  @Override
+  public void run()
+  {
+    recoverBundles();
+    deleteExpiredBundles();
+    final List<Path> files = new ArrayList<Path>();
+    Path file;
+    while (running || !queue.isEmpty())
+    {
+      try
+      {
+        long timeout = POLL_MS;
+        if (bundle != null)
+        {
+          timeout = Math.max(0, Math.min(timeout,
+              bundleEndTime - System.currentTimeMillis()));
+        }
+        if (!retries.isEmpty())
+        {
+          timeout = Math.max(0, Math.min(timeout,
+              retries.peek().getTime() - System.currentTimeMillis()));
+        }
+        file = queue.poll(timeout, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException ex)
+      {
+        file = null;
+      }
+      if (file != null)
+      {
+        files.add(file);
+        queue.drainTo(files);
+        for (Path f : files)
+        {
+          if (f != SHUTDOWN_PATH && !writeFile(f))
+          {
+            retries.add(new FileRetry(f, 1));
+          }
+        }
+        files.clear();
+      }
+      FileRetry retry;
+      while (!retries.isEmpty()
+          && retries.peek().getTime() <= System.currentTimeMillis())
+      {
+        retry = retries.poll();
+        if (!writeFile(retry.getFile()))
+        {
+          retries.add(retry.next());
+        }
+      }
+      commitBatch();
+      if (bundle != null && System.currentTimeMillis() >= bundleEndTime)
+      {
+        closeBundle();
+      }
+    }
+    closeBundle();
+    if (!retries.isEmpty())
+    {
+      // the files are in the dispatched log and are archived at startup
+      LOGGER.warning(getLogMessage(
+          "could not archive " + retries.size() + " files before shutdown"));
+    }
+  }
+
+  /**
+   * Stop the archive thread after the queued files have been archived.
+   * 
+   * @throws InterruptedException if interrupted.
+   */
+  public void shutdown() throws InterruptedException
+  {
+    running = false;
+    // do not interrupt since that would close a file being read
+    queue.add(SHUTDOWN_PATH);
+    final Thread t;
+    synchronized (this)
+    {
+      t = thread;
+      thread = null;
+    }
+    if (t != null)
+    {
+      t.join();
+    }
+  }
+
+  /**
+   * Start the archive thread.
+   */
+  public synchronized void startup()
+  {
+    if (thread == null)
+    {
+      running = true;
+      thread = new Thread(this, name + "-archive");
+      thread.start();
+    }
+  }
+
+  /**
+   * Write the file to the bundle. The file is deleted once the batch is
+   * committed.
+   * 
+   * @param file the file.
+   * @return true if the file was written or no longer exists, false if it
+   *         should be retried.
+   */
+  private boolean writeFile(Path file)
+  {
+    try (InputStream in = Files.newInputStream(file))
+    {
+      final long size = Files.size(file);
+      final long mtime = Files.getLastModifiedTime(file).toMillis();
+      try
+      {
+        final long time = System.currentTimeMillis();
+        if (bundle == null || time >= bundleEndTime)
+        {
+          commitBatch();
+          closeBundle();
+          openBundle(time);
+        }
+        // stream the file since a journal segment may be large
+        writeTarHeader(bundle, file.getFileName().toString(), size, mtime);
+        copyTarData(in, bundle, size);
+      }
+      catch (IOException ex)
+      {
+        LOGGER.warning(
+            getLogMessage("could not archive file (" + file + "): " + ex));
+        // the bundle may end with part of the file
+        rollbackBundle();
+        return false;
+      }
+      batch.add(file);
+      return true;
+    }
+    catch (NoSuchFileException ex)
+    {
+      pending.remove(file);
+      return true;
+    }
+    catch (IOException ex)
+    {
+      LOGGER.warning(
+          getLogMessage("could not archive file (" + file + "): " + ex));
+      return false;
+    }
+  }
+}
@@ -0,0 +1,227 @@
+package com.isti.pdl.eidsutil;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import gov.usgs.earthquake.distribution.Notification;
+import gov.usgs.earthquake.distribution.URLNotification;
+import gov.usgs.earthquake.product.ProductId;
+
+/**
+ * Encodes URL notifications in a compact binary format directly into a reused
+ * buffer and decodes them. The format starts with a zero byte, which never
+ * starts an XML document, followed by "EB" and the version so that it can be
+ * detected on read. The product ID source, type and code, the update time, the
+ * expiration time, the product URL and the tracker URL follow. Times are
+ * milliseconds since the epoch and text is the UTF-8 length followed by the
+ * UTF-8 bytes, with a length of -1 for no tracker URL. An encoder is not
+ * thread safe.
+ */
+public class NotificationBinaryCodec
+{
+  /** The current version. */
+  public static final int VERSION = 1;
+  /** The header length. */
+  private static final int HEADER_LENGTH = 4;
+  /** The initial buffer capacity. */
+  private static final int INITIAL_CAPACITY = 256;
+
+  /**
+   * Decode the notification.
+   * 
+   * @param buffer the buffer, the position is advanced past the notification.
+   * @return the URL notification.
+   * @throws IOException if the notification could not be decoded.
+   */
+  public static URLNotification decode(ByteBuffer buffer) throws IOException
+  {
+    if (!isBinary(buffer))
+    {
+      throw new IOException("not a binary notification");
+    }
+    final int version = buffer.get(buffer.position() + 3);
+    if (version != VERSION)
+    {
+      throw new IOException(
+          "unsupported binary notification version (" + version + ")");
+    }
+    try
+    {
+      ((Buffer) buffer).position(buffer.position() + HEADER_LENGTH);
+      final String source = getString(buffer);
+      final String type = getString(buffer);
+      final String code = getString(buffer);
+      final Date updateTime = new Date(buffer.getLong());
+      final Date expires = new Date(buffer.getLong());
+      final String productURL = getString(buffer);
+      final String trackerURL = getString(buffer);
+      return new URLNotification(
+          new ProductId(source, type, code, updateTime), expires,
+          trackerURL != null ? new URL(trackerURL) : null, new URL(productURL));
+    }
+    catch (BufferUnderflowException ex)
+    {
+      throw new IOException("truncated binary notification");
+    }
+  }
+
+  /**
+   * Get the text.
+   * 
+   * @param buffer the buffer.
+   * @return the text or null if none.
+   * @throws IOException if the length is not valid.
+   */
+  private static String getString(ByteBuffer buffer) throws IOException
+  {
+    final int length = buffer.getInt();
+    if (length == -1)
+    {
+      return null;
+    }
+    if (length < 0 || length > buffer.remaining())
+    {
+      throw new IOException("invalid binary notification text length");
+    }
+    final String s;
+    if (buffer.hasArray())
+    {
+      s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+          length, StandardCharsets.UTF_8);
+      ((Buffer) buffer).position(buffer.position() + length);
+    }
+    else
+    {
+      // a direct or mapped buffer
+      final byte[] b = new byte[length];
+      buffer.get(b);
+      s = new String(b, StandardCharsets.UTF_8);
+    }
+    return s;
+  }
+
+  /**
+   * Determine if the buffer contains a binary notification.
+   * 
+   * @param buffer the buffer, the position is not changed.
+   * @return true if a binary notification, false otherwise.
+   */
+  public static boolean isBinary(ByteBuffer buffer)
+  {
+    final int position = buffer.position();
+    return buffer.remaining() >= HEADER_LENGTH && buffer.get(position) == 0
+        && buffer.get(position + 1) == 'E' && buffer.get(position + 2) == 'B';
+  }
+
+  /** The reused buffer. */
+  private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+  /**
+   * Encode the notification.
+   * 
+   * @param notification the notification.
+   * @return the buffer containing the encoded notification, which is only
+   *         valid until the next notification is encoded, or null if not a
+   *         URL notification.
+   */
+  public ByteBuffer encode(Notification notification)
+  {
+    if (!(notification instanceof URLNotification))
+    {
+      return null;
+    }
+    final URLNotification n = (URLNotification) notification;
+    final ProductId id = n.getProductId();
+    final URL trackerURL = n.getTrackerURL();
+    // cast for compatibility with the Java 8 runtime
+    ((Buffer) buffer).clear();
+    buffer.put((byte) 0).put((byte) 'E').put((byte) 'B').put((byte) VERSION);
+    putString(id.getSource());
+    putString(id.getType());
+    putString(id.getCode());
+    ensureRemaining(16);
+    buffer.putLong(id.getUpdateTime().getTime());
+    buffer.putLong(n.getExpirationDate().getTime());
+    putString(n.getProductURL().toString());
+    putString(trackerURL != null ? trackerURL.toString() : null);
+    ((Buffer) buffer).flip();
+    return buffer;
+  }
+
+  /**
+   * Ensure the buffer has room for the specified number of bytes.
+   * 
+   * @param length the number of bytes.
+   */
+  private void ensureRemaining(int length)
+  {
+    if (buffer.remaining() < length)
+    {
+      final ByteBuffer b = ByteBuffer.allocate(
+          Math.max(buffer.capacity() * 2, buffer.position() + length));
+      ((Buffer) buffer).flip();
+      b.put(buffer);
+      buffer = b;
+    }
+  }
+
+  /**
+   * Put the text as the UTF-8 length followed by the UTF-8 bytes.
+   * 
+   * @param s the text or null if none.
+   */
+  private void putString(String s)
+  {
+    if (s == null)
+    {
+      ensureRemaining(4);
+      buffer.putInt(-1);
+      return;
+    }
+    final int length = s.length();
+    // a character is at most 3 bytes
+    ensureRemaining(4 + length * 3);
+    final int lengthPosition = buffer.position();
+    buffer.putInt(0);
+    char c;
+    int cp;
+    for (int i = 0; i < length; i++)
+    {
+      c = s.charAt(i);
+      if (c < 0x80)
+      {
+        buffer.put((byte) c);
+      }
+      else if (c < 0x800)
+      {
+        buffer.put((byte) (0xc0 | (c >> 6)));
+        buffer.put((byte) (0x80 | (c & 0x3f)));
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(s.charAt(i + 1)))
+      {
+        cp = Character.toCodePoint(c, s.charAt(++i));
+        buffer.put((byte) (0xf0 | (cp >> 18)));
+        buffer.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+        buffer.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+        buffer.put((byte) (0x80 | (cp & 0x3f)));
+      }
+      else if (Character.isSurrogate(c))
+      {
+        buffer.put((byte) '?');
+      }
+      else
+      {
+        buffer.put((byte) (0xe0 | (c >> 12)));
+        buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+        buffer.put((byte) (0x80 | (c & 0x3f)));
+      }
+    }
+    buffer.putInt(lengthPosition, buffer.position() - lengthPosition - 4);
+  }
+}
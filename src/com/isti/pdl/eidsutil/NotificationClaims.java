@@ -0,0 +1,483 @@
+package com.isti.pdl.eidsutil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Claims notification files so that several readers on one or more hosts may
+ * share a notification directory. A file is claimed by atomically renaming it
+ * into the claim directory for the node, so only one reader can claim each
+ * file. Each node renews its lease by updating the lease file in its claim
+ * directory on a background thread. The lease of another node expires once
+ * its lease file has not changed for the lease period, which is measured with
+ * the local clock so that the clocks of the hosts need not be synchronized.
+ * Once the lease of another node has expired the files it had dispatched,
+ * which are in its dispatched log, are claimed and disposed of and the rest
+ * are moved back to the notification directory so that they are claimed
+ * again. A node that was paused for longer than the lease may still dispatch
+ * a file that is being recovered, so each notification is dispatched at
+ * least once rather than exactly once.
+ */
+public class NotificationClaims implements Runnable
+{
+  /** Logging object. */
+  private static final Logger LOGGER = Logger
+      .getLogger(NotificationClaims.class.getName());
+  /** The number of lease checks during each lease period. */
+  private static final int LEASE_CHECKS = 4;
+
+  /**
+   * The lease of another node as observed by this node.
+   */
+  private static class Lease
+  {
+    /** The modification time of the lease file. */
+    private long mtime;
+    /** The local time the modification time was last seen to change. */
+    private long changeTime;
+  }
+
+  /** The claim path. */
+  private final Path claimPath;
+  /** The disposer. */
+  private NotificationDisposer disposer;
+  /** The lease in milliseconds. */
+  private final long leaseMs;
+  /** The leases of the other nodes, only used by the lease thread. */
+  private final Map<Path, Lease> leases = new HashMap<Path, Lease>();
+  /** The metrics or null if none. */
+  private final EIDSReaderMetrics metrics;
+  /** The name. */
+  private final String name;
+  /** The notifications. */
+  private final EIDSNotifications notifications;
+  /** The running flag. */
+  private volatile boolean running;
+  /** The lease thread. */
+  private Thread thread;
+
+  /**
+   * Create the notification claims.
+   * 
+   * @param name          the name used for logging and the lease thread.
+   * @param notifications the notifications for the notification directory and
+   *                      prefix.
+   * @param nodeId        the node ID, which must be unique for the readers
+   *                      sharing the notification directory.
+   * @param leaseMs       the lease in milliseconds.
+   * @param metrics       the metrics or null if none.
+   */
+  public NotificationClaims(String name, EIDSNotifications notifications,
+      String nodeId, long leaseMs, EIDSReaderMetrics metrics)
+  {
+    this.name = name;
+    this.notifications = notifications;
+    this.leaseMs = leaseMs;
+    this.metrics = metrics;
+    claimPath = notifications.getNotificationDir().toPath()
+        .resolve(getClaimPrefix() + nodeId);
+  }
+
+  /**
+   * Claim the file by moving it to the claim directory.
+   * 
+   * @param file the notification file.
+   * @return the claimed file or null if the file was claimed by another
+   *         reader or could not be claimed.
+   */
+  public Path claim(Path file)
+  {
+    final Path claimedFile = claimPath.resolve(file.getFileName());
+    try
+    {
+      try
+      {
+        Files.move(file, claimedFile, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (NoSuchFileException ex)
+      {
+        if (Files.isDirectory(claimPath))
+        {
+          throw ex;
+        }
+        // the claim directory was removed after the lease expired
+        Files.createDirectories(claimPath);
+        Files.move(file, claimedFile, StandardCopyOption.ATOMIC_MOVE);
+      }
+      return claimedFile;
+    }
+    catch (NoSuchFileException ex)
+    {
+      if (LOGGER.isLoggable(Level.FINE))
+        LOGGER.fine(getLogMessage("file claimed by another reader (" + file
+            + ")"));
+    }
+    catch (IOException ex)
+    {
+      if (metrics != null)
+      {
+        metrics.error();
+      }
+      LOGGER.warning(
+          getLogMessage("could not claim file (" + file + "): " + ex));
+    }
+    return null;
+  }
+
+  /**
+   * Get the claim path.
+   * 
+   * @return the claim path.
+   */
+  public Path getClaimPath()
+  {
+    return claimPath;
+  }
+
+  /**
+   * Get the claim directory name without the node ID.
+   * 
+   * @return the claim directory name prefix.
+   */
+  private String getClaimPrefix()
+  {
+    return notifications.getNotificationFilePrefix() + EIDSConst.CLAIM_DIR;
+  }
+
+  /**
+   * Get the dispatched log file, which is in the claim directory so that the
+   * files the node had dispatched are known once its lease has expired.
+   * 
+   * @return the dispatched log file.
+   */
+  public File getDispatchedLogFile()
+  {
+    return getDispatchedLogPath(claimPath).toFile();
+  }
+
+  /**
+   * Get the dispatched log path.
+   * 
+   * @param dir the claim directory.
+   * @return the dispatched log path.
+   */
+  private Path getDispatchedLogPath(Path dir)
+  {
+    return dir.resolve(
+        notifications.getNotificationFilePrefix() + EIDSConst.DISPATCHED_FILE);
+  }
+
+  /**
+   * Get the lease path.
+   * 
+   * @param dir the claim directory.
+   * @return the lease path.
+   */
+  private Path getLeasePath(Path dir)
+  {
+    return dir.resolve(
+        notifications.getNotificationFilePrefix() + EIDSConst.LEASE_FILE);
+  }
+
+  /**
+   * Get the log message.
+   * 
+   * @param message the message.
+   * @return the log message.
+   */
+  private String getLogMessage(String message)
+  {
+    return "[" + name + "] " + message;
+  }
+
+  /**
+   * Determine if the claimed file is still claimed by this node. The file is
+   * moved back to the notification directory if another node found that the
+   * lease of this node had expired, for example after this node was paused.
+   * Since the file may be moved right after it is checked a notification
+   * whose claim is recovered while it is dispatched may also be dispatched by
+   * another node, so notifications are dispatched at least once.
+   * 
+   * @param file the claimed file.
+   * @return true if the file is still claimed, false otherwise.
+   */
+  public boolean isClaimed(Path file)
+  {
+    return Files.exists(file);
+  }
+
+  /**
+   * Determine if the lease for the claim directory has expired. The lease has
+   * expired once the modification time of the lease file has not changed for
+   * the lease period as measured by the local clock, so a clock difference
+   * between the hosts does not expire a lease early.
+   * 
+   * @param dir the claim directory.
+   * @return true if the lease has expired, false otherwise.
+   * @throws IOException if an I/O error occurs.
+   */
+  private boolean isExpired(Path dir) throws IOException
+  {
+    FileTime time;
+    try
+    {
+      time = Files.getLastModifiedTime(getLeasePath(dir));
+    }
+    catch (NoSuchFileException ex)
+    {
+      // the node stopped before its first lease
+      time = Files.getLastModifiedTime(dir);
+    }
+    final long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    Lease lease = leases.get(dir);
+    if (lease == null)
+    {
+      lease = new Lease();
+      lease.mtime = time.toMillis();
+      lease.changeTime = now;
+      leases.put(dir, lease);
+      return false;
+    }
+    if (lease.mtime != time.toMillis())
+    {
+      lease.mtime = time.toMillis();
+      lease.changeTime = now;
+      return false;
+    }
+    return now - lease.changeTime > leaseMs;
+  }
+
+  /**
+   * Recover the files in the claim directory.
+   * 
+   * @param dir the claim directory.
+   * @param own true for the claim directory of this node, false for another
+   *            node whose lease has expired.
+   * @throws IOException if an I/O error occurs.
+   */
+  private void recoverClaims(Path dir, boolean own) throws IOException
+  {
+    final Path logFile = getDispatchedLogPath(dir);
+    final Set<String> dispatched = new HashSet<String>();
+    if (!own && Files.exists(logFile))
+    {
+      dispatched.addAll(Files.readAllLines(logFile, StandardCharsets.UTF_8));
+    }
+    final List<Path> files = UtilFns.getNotificationFiles(dir,
+        notifications.getNotificationFilePrefix(), new ArrayList<Path>());
+    int count = 0;
+    boolean failed = false;
+    String filename;
+    Path claimedFile;
+    for (Path file : files)
+    {
+      if (disposer.isPending(file))
+      {
+        // dispatched before the last shutdown, see the disposer
+        continue;
+      }
+      filename = file.getFileName().toString();
+      try
+      {
+        if (dispatched.contains(filename))
+        {
+          // claim the dispatched file so that it is not dispatched again
+          claimedFile = claimPath.resolve(filename);
+          Files.move(file, claimedFile, StandardCopyOption.ATOMIC_MOVE);
+          disposer.dispose(claimedFile);
+        }
+        else
+        {
+          Files.move(file, notifications.getNotificationDir(filename).toPath()
+              .resolve(filename), StandardCopyOption.ATOMIC_MOVE);
+        }
+        count++;
+      }
+      catch (NoSuchFileException ex)
+      {
+        // recovered by another reader
+      }
+      catch (IOException ex)
+      {
+        failed = true;
+        if (metrics != null)
+        {
+          metrics.error();
+        }
+        LOGGER.warning(getLogMessage(
+            "could not recover claimed file (" + file + "): " + ex));
+      }
+    }
+    if (count > 0)
+    {
+      LOGGER.info(
+          getLogMessage("recovered " + count + " claimed files (" + dir + ")"));
+    }
+    if (!own && !failed)
+    {
+      Files.deleteIfExists(logFile);
+      Files.deleteIfExists(getLeasePath(dir));
+      try
+      {
+        Files.deleteIfExists(dir);
+      }
+      catch (DirectoryNotEmptyException ex)
+      {
+      }
+    }
+  }
+
+  /**
+   * Recover the claims of the other nodes whose leases have expired.
+   */
+  private void recoverExpiredClaims()
+  {
+    final String prefix = getClaimPrefix();
+    final List<Path> dirs;
+    try (Stream<Path> stream = Files.list(claimPath.getParent()))
+    {
+      dirs = stream.filter(dir -> dir.getFileName().toString()
+          .startsWith(prefix) && !dir.equals(claimPath)
+          && Files.isDirectory(dir)).collect(Collectors.toList());
+    }
+    catch (IOException ex)
+    {
+      LOGGER.warning(getLogMessage("could not list claims: " + ex));
+      return;
+    }
+    // forget the leases of the claim directories that were removed
+    leases.keySet().retainAll(dirs);
+    for (Path dir : dirs)
+    {
+      try
+      {
+        if (isExpired(dir))
+        {
+          LOGGER.info(getLogMessage("lease expired (" + dir + ")"));
+          recoverClaims(dir, false);
+        }
+      }
+      catch (NoSuchFileException ex)
+      {
+        // recovered by another reader
+      }
+      catch (IOException ex)
+      {
+        LOGGER.warning(getLogMessage(
+            "could not recover claims (" + dir + "): " + ex));
+      }
+    }
+  }
+
+  /**
+   * Renew the lease.
+   * 
+   * @throws IOException if an I/O error occurs.
+   */
+  private void renewLease() throws IOException
+  {
+    final Path leaseFile = getLeasePath(claimPath);
+    if (!Files.exists(leaseFile))
+    {
+      // the claim directory is removed after the lease expires
+      Files.createDirectories(claimPath);
+      Files.write(leaseFile, new byte[0]);
+    }
+    Files.setLastModifiedTime(leaseFile,
+        FileTime.fromMillis(System.currentTimeMillis()));
+  }
+
+  @Override
+  public void run()
+  {
+    while (running)
+    {
+      try
+      {
+        renewLease();
+      }
+      catch (IOException ex)
+      {
+        LOGGER.warning(getLogMessage("could not renew lease: " + ex));
+      }
+      recoverExpiredClaims();
+      try
+      {
+        synchronized (this)
+        {
+          if (running)
+          {
+            wait(leaseMs / LEASE_CHECKS);
+          }
+        }
+      }
+      catch (InterruptedException ex)
+      {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Stop the lease thread. The lease is not removed, the claim directory is
+   * removed by another node after the lease has expired.
+   * 
+   * @throws InterruptedException if interrupted.
+   */
+  public void shutdown() throws InterruptedException
+  {
+    final Thread t;
+    synchronized (this)
+    {
+      running = false;
+      notifyAll();
+      t = thread;
+      thread = null;
+    }
+    if (t != null)
+    {
+      t.join();
+    }
+  }
+
+  /**
+   * Renew the lease, move the files claimed but not dispatched before the last
+   * shutdown back to the notification directory and start the lease thread.
+   * 
+   * @param disposer the disposer, which must have been started.
+   * @throws IOException if the claim directory could not be created.
+   */
+  public synchronized void startup(NotificationDisposer disposer)
+      throws IOException
+  {
+    if (thread != null)
+    {
+      return;
+    }
+    this.disposer = disposer;
+    Files.createDirectories(claimPath);
+    renewLease();
+    recoverClaims(claimPath, true);
+    running = true;
+    thread = new Thread(this, name + "-claims");
+    thread.start();
+  }
+}
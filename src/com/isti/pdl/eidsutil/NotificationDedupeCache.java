@@ -0,0 +1,115 @@
+package com.isti.pdl.eidsutil;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import gov.usgs.earthquake.product.ProductId;
+
+/**
+ * A bounded least recently used cache of the product IDs (which include the
+ * update time) of the notifications that have been seen, used to discard
+ * repeated notifications. Entries are evicted when the cache is full or when
+ * they have not been seen for the maximum age.
+ */
+public class NotificationDedupeCache
+{
+  /** The hit count. */
+  private final LongAdder hits = new LongAdder();
+  /** The maximum age in milliseconds. */
+  private final long maxAgeMs;
+  /** The maximum size. */
+  private final int maxSize;
+  /** The miss count. */
+  private final LongAdder misses = new LongAdder();
+  /** The time each product ID was last seen in access order. */
+  private final LinkedHashMap<ProductId, Long> seen;
+
+  /**
+   * Create the notification dedupe cache.
+   * 
+   * @param maxSize  the maximum size.
+   * @param maxAgeMs the maximum age in milliseconds.
+   */
+  public NotificationDedupeCache(int maxSize, long maxAgeMs)
+  {
+    this.maxSize = maxSize;
+    this.maxAgeMs = maxAgeMs;
+    seen = new LinkedHashMap<ProductId, Long>(16, 0.75f, true)
+    {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ProductId, Long> eldest)
+      {
+        return size() > NotificationDedupeCache.this.maxSize;
+      }
+    };
+  }
+
+  /**
+   * Forget that the product was seen, for example if it could not be
+   * processed.
+   * 
+   * @param id the product ID.
+   */
+  public synchronized void forget(ProductId id)
+  {
+    seen.remove(id);
+  }
+
+  /**
+   * Get the hit count.
+   * 
+   * @return the number of repeated notifications.
+   */
+  public long getHits()
+  {
+    return hits.sum();
+  }
+
+  /**
+   * Get the miss count.
+   * 
+   * @return the number of notifications not seen before.
+   */
+  public long getMisses()
+  {
+    return misses.sum();
+  }
+
+  /**
+   * Get the size.
+   * 
+   * @return the number of product IDs in the cache.
+   */
+  public synchronized int getSize()
+  {
+    return seen.size();
+  }
+
+  /**
+   * Determine if the product has been seen and record that it was seen.
+   * 
+   * @param id the product ID.
+   * @return true if the product has been seen, false otherwise.
+   */
+  public synchronized boolean isDuplicate(ProductId id)
+  {
+    final long time = System.currentTimeMillis();
+    // the eldest entries are the ones not seen for the longest time
+    final Iterator<Long> it = seen.values().iterator();
+    while (it.hasNext() && time - it.next() > maxAgeMs)
+    {
+      it.remove();
+    }
+    if (seen.put(id, time) != null)
+    {
+      hits.increment();
+      return true;
+    }
+    misses.increment();
+    return false;
+  }
+}
@@ -0,0 +1,335 @@
+package com.isti.pdl.eidsutil;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Dispatches tasks on an executor while running the tasks for the same key in
+ * the order they were dispatched. If there is no executor the tasks are run on
+ * the caller's thread.
+ */
+public class NotificationDispatcher
+{
+  /** Logging object. */
+  private static final Logger LOGGER = Logger
+      .getLogger(NotificationDispatcher.class.getName());
+
+  /**
+   * Create a fixed thread pool executor for dispatching.
+   * 
+   * @param name    the name used for the dispatch threads.
+   * @param threads the number of dispatch threads.
+   * @return the executor.
+   */
+  public static ExecutorService newFixedExecutor(final String name,
+      int threads)
+  {
+    final AtomicInteger threadNum = new AtomicInteger();
+    return Executors.newFixedThreadPool(threads, new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(Runnable r)
+      {
+        return new Thread(r, name + "-dispatch" + threadNum.getAndIncrement());
+      }
+    });
+  }
+
+  /**
+   * Create an executor that starts a virtual thread for each task. Reflection
+   * is used so that this class may still be compiled for and run on Java 8.
+   * 
+   * @param name the name used for the dispatch threads.
+   * @return the executor or null if virtual threads are not supported.
+   */
+  public static ExecutorService newVirtualExecutor(String name)
+  {
+    try
+    {
+      final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class)
+          .invoke(builder, name + "-dispatch", 0L);
+      final ThreadFactory factory = (ThreadFactory) builderClass
+          .getMethod("factory").invoke(builder);
+      return (ExecutorService) Executors.class
+          .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+          .invoke(null, factory);
+    }
+    catch (ReflectiveOperationException ex)
+    {
+      // virtual threads are not supported or are not enabled
+      return null;
+    }
+  }
+
+  /** The executor or null to run tasks on the caller's thread. */
+  private final ExecutorService executor;
+  /** The name. */
+  private final String name;
+  /** The number of tasks that have been dispatched but not completed. */
+  private int pending;
+  /** The pending tasks for each key that has a task running. */
+  private final Map<String, Queue<Runnable>> queues = //
+      new HashMap<String, Queue<Runnable>>();
+
+  /**
+   * Create the notification dispatcher.
+   * 
+   * @param name     the name used for logging.
+   * @param executor the executor or null to run tasks on the caller's thread.
+   */
+  public NotificationDispatcher(String name, ExecutorService executor)
+  {
+    this.name = name;
+    this.executor = executor;
+  }
+
+  /**
+   * Create the notification dispatcher.
+   * 
+   * @param name    the name used for the dispatch threads.
+   * @param threads the number of dispatch threads or 1 or less to run tasks
+   *                on the caller's thread.
+   */
+  public NotificationDispatcher(String name, int threads)
+  {
+    this(name, threads > 1 ? newFixedExecutor(name, threads) : null);
+  }
+
+  /**
+   * Wait until all dispatched tasks have completed.
+   * 
+   * @throws InterruptedException if interrupted.
+   */
+  public void awaitIdle() throws InterruptedException
+  {
+    awaitPending(0, 0);
+  }
+
+  /**
+   * Wait until the number of pending tasks is at or below the specified
+   * number.
+   * 
+   * @param n         the number of pending tasks.
+   * @param timeoutMs the maximum time to wait in milliseconds or 0 to wait
+   *                  until the number of pending tasks is reached.
+   * @return true if the number of pending tasks is at or below the specified
+   *         number, false if the time elapsed.
+   * @throws InterruptedException if interrupted.
+   */
+  public boolean awaitPending(int n, long timeoutMs)
+      throws InterruptedException
+  {
+    final long deadline = System.currentTimeMillis() + timeoutMs;
+    long remaining = 0;
+    synchronized (queues)
+    {
+      while (pending > n)
+      {
+        if (timeoutMs > 0
+            && (remaining = deadline - System.currentTimeMillis()) <= 0)
+        {
+          return false;
+        }
+        queues.wait(remaining);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Dispatch the task.
+   * 
+   * @param key  the key, tasks with the same key are run in order.
+   * @param task the task.
+   */
+  public void dispatch(String key, Runnable task)
+  {
+    if (executor == null)
+    {
+      runTask(task);
+      return;
+    }
+    synchronized (queues)
+    {
+      pending++;
+      final Queue<Runnable> queue = queues.get(key);
+      if (queue != null)
+      {
+        // wait for the running task for this key
+        queue.add(task);
+        return;
+      }
+      queues.put(key, new ArrayDeque<Runnable>());
+    }
+    submitChain(key, task);
+  }
+
+  /**
+   * Complete the running task for the key.
+   * 
+   * @param key the key.
+   * @return the next task for the key or null if there is none.
+   */
+  private Runnable completeTask(String key)
+  {
+    synchronized (queues)
+    {
+      pending--;
+      queues.notifyAll();
+      final Queue<Runnable> queue = queues.get(key);
+      final Runnable next = queue.poll();
+      if (next == null)
+      {
+        queues.remove(key);
+      }
+      return next;
+    }
+  }
+
+  /**
+   * Drop the task that could not be submitted and the tasks waiting behind it
+   * for the key so that the threads waiting for the pending tasks are
+   * released.
+   * 
+   * @param key the key.
+   */
+  private void dropChain(String key)
+  {
+    final int dropped;
+    synchronized (queues)
+    {
+      final Queue<Runnable> queue = queues.remove(key);
+      dropped = 1 + (queue == null ? 0 : queue.size());
+      pending -= dropped;
+      queues.notifyAll();
+    }
+    LOGGER.fine("[" + name + "] dispatcher shut down, " + dropped
+        + " tasks not run");
+  }
+
+  /**
+   * Get the number of tasks that have been dispatched but not completed.
+   * 
+   * @return the number of pending tasks.
+   */
+  public int getPending()
+  {
+    synchronized (queues)
+    {
+      return pending;
+    }
+  }
+
+  /**
+   * Determine if tasks are run on the caller's thread.
+   * 
+   * @return true if tasks are run on the caller's thread.
+   */
+  public boolean isInline()
+  {
+    return executor == null;
+  }
+
+  /**
+   * Run the task and then submit the next task for the key if there is one.
+   * 
+   * @param key  the key.
+   * @param task the task.
+   */
+  private void runChain(String key, Runnable task)
+  {
+    try
+    {
+      runTask(task);
+    }
+    finally
+    {
+      // release the key and run the next task even if the task threw an error
+      final Runnable next = completeTask(key);
+      if (next != null)
+      {
+        // resubmit rather than loop so that other keys get a turn
+        submitChain(key, next);
+      }
+    }
+  }
+
+  /**
+   * Run the task.
+   * 
+   * @param task the task.
+   */
+  private void runTask(Runnable task)
+  {
+    try
+    {
+      task.run();
+    }
+    catch (RuntimeException ex)
+    {
+      LOGGER.log(Level.WARNING, "[" + name + "] Error dispatching notification",
+          ex);
+    }
+  }
+
+  /**
+   * Shut down the dispatcher, waiting for the dispatched tasks to complete.
+   * 
+   * @param timeoutMs the maximum time to wait in milliseconds.
+   * @throws InterruptedException if interrupted.
+   */
+  public void shutdown(long timeoutMs) throws InterruptedException
+  {
+    if (executor == null)
+    {
+      return;
+    }
+    final long deadline = System.currentTimeMillis() + timeoutMs;
+    long remaining;
+    synchronized (queues)
+    {
+      while (pending != 0
+          && (remaining = deadline - System.currentTimeMillis()) > 0)
+      {
+        queues.wait(remaining);
+      }
+    }
+    executor.shutdown();
+    if (!executor.awaitTermination(
+        Math.max(0, deadline - System.currentTimeMillis()),
+        TimeUnit.MILLISECONDS))
+    {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Submit the task to the executor and then run the next tasks for the key.
+   * 
+   * @param key  the key.
+   * @param task the task.
+   */
+  private void submitChain(String key, Runnable task)
+  {
+    try
+    {
+      executor.execute(() -> runChain(key, task));
+    }
+    catch (RejectedExecutionException ex)
+    {
+      dropChain(key);
+    }
+  }
+}
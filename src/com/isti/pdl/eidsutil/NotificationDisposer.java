@@ -0,0 +1,586 @@
+package com.isti.pdl.eidsutil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Disposes of processed files on a background thread by deleting them, moving
+ * them to the processed directory or passing them to the archiver so that the
+ * dispatch threads do not wait for the file system. Files that could not be
+ * disposed of are retried with an increasing delay. Each file is recorded in
+ * the dispatched log before it is queued and the files in the log that still
+ * exist at startup are disposed of rather than dispatched again. The log is
+ * synced before a file is queued, once for all the files recorded while the
+ * previous sync was in progress, and is created again with the pending files
+ * if it was removed.
+ */
+public class NotificationDisposer implements Runnable
+{
+  /** Logging object. */
+  private static final Logger LOGGER = Logger
+      .getLogger(NotificationDisposer.class.getName());
+  /** The number of log entries after which the log is compacted. */
+  private static final int LOG_COMPACT_ENTRIES = 10000;
+  /** The maximum time to wait for a file before checking for shutdown. */
+  private static final long POLL_MS = 1000;
+  /** The path queued to wake the dispose thread at shutdown. */
+  private static final Path SHUTDOWN_PATH = Paths.get("");
+
+  /** The archiver or null if none. */
+  private final NotificationArchiver archiver;
+  /** The dispatched log channel or null if not open. */
+  private FileChannel log;
+  /** The number of entries in the dispatched log. */
+  private int logEntries;
+  /** The dispatched log file. */
+  private final Path logFile;
+  /** The file key of the dispatched log when it was opened or null if none. */
+  private Object logKey;
+  /** The number of the last entry synced to the dispatched log. */
+  private long logSynced;
+  /** The sync lock for the dispatched log, taken before this object. */
+  private final Object logSyncLock = new Object();
+  /** The number of the last entry written to the dispatched log. */
+  private long logWritten;
+  /** The metrics or null if none. */
+  private final EIDSReaderMetrics metrics;
+  /** The name. */
+  private final String name;
+  /** The files that have been queued but not disposed of. */
+  private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+  /** The processed path or null to delete the files. */
+  private final Path processedPath;
+  /** The queued files. */
+  private final BlockingQueue<Path> queue = new LinkedBlockingQueue<Path>();
+  /** The files to retry. */
+  private final PriorityQueue<FileRetry> retries = //
+      new PriorityQueue<FileRetry>();
+  /** The running flag. */
+  private volatile boolean running;
+  /** The dispose thread. */
+  private Thread thread;
+
+  /**
+   * Create the notification disposer.
+   * 
+   * @param name         the name used for logging and the dispose thread.
+   * @param logFile      the dispatched log file.
+   * @param processedDir the processed directory or null to delete the files.
+   * @param archiver     the archiver or null if none.
+   * @param metrics      the metrics or null if none.
+   */
+  public NotificationDisposer(String name, File logFile, File processedDir,
+      NotificationArchiver archiver, EIDSReaderMetrics metrics)
+  {
+    this.name = name;
+    this.logFile = logFile.toPath();
+    this.processedPath = processedDir != null ? processedDir.toPath() : null;
+    this.archiver = archiver;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Check that the dispatched log has not been removed, which happens when
+   * another node recovers the claims of this node after its lease expired,
+   * for example after this node was paused. The log is then created again
+   * with the pending files that still exist so that they are not dispatched
+   * again after a restart.
+   * 
+   * @throws IOException if an I/O error occurs.
+   */
+  private void checkLog() throws IOException
+  {
+    try
+    {
+      if (Objects.equals(logKey, getLogKey()))
+      {
+        return;
+      }
+    }
+    catch (NoSuchFileException ex)
+    {
+    }
+    LOGGER.warning(getLogMessage("dispatched log was removed, recreating ("
+        + logFile + ")"));
+    log.close();
+    Files.createDirectories(logFile.getParent());
+    log = openLog();
+    logKey = getLogKey();
+    logEntries = 0;
+    for (Path file : pending)
+    {
+      if (Files.exists(file))
+      {
+        final ByteBuffer entry = ByteBuffer.wrap(
+            (getLogName(file) + "\n").getBytes(StandardCharsets.UTF_8));
+        while (entry.hasRemaining())
+        {
+          log.write(entry);
+        }
+        logEntries++;
+      }
+    }
+    log.force(false);
+  }
+
+  /**
+   * Compact the dispatched log by removing the files that no longer exist.
+   * 
+   * @throws IOException if an I/O error occurs.
+   */
+  private void compactLog() throws IOException
+  {
+    synchronized (logSyncLock)
+    {
+      synchronized (this)
+      {
+        replaceLog();
+        // the replacement has every entry that is still needed
+        logSynced = logWritten;
+      }
+    }
+    if (LOGGER.isLoggable(Level.FINE))
+      LOGGER.fine(getLogMessage("compacted dispatched log (" + logEntries
+          + " files not disposed of)"));
+  }
+
+  /**
+   * Dispose of the file.
+   * 
+   * @param file the file.
+   * @return true if the file was disposed of, false otherwise.
+   */
+  private boolean disposeFile(Path file)
+  {
+    try
+    {
+      if (archiver != null)
+      {
+        // the archiver deletes the file after it is in a bundle
+        archiver.archive(file);
+      }
+      else if (processedPath != null)
+      {
+        Files.move(file, processedPath.resolve(file.getFileName()));
+      }
+      else
+      {
+        Files.delete(file);
+      }
+      return true;
+    }
+    catch (NoSuchFileException ex)
+    {
+      LOGGER.info(getLogMessage(
+          "could not dispose of file (" + file + "), no longer exists"));
+      return true;
+    }
+    catch (Exception ex)
+    {
+      if (metrics != null)
+      {
+        metrics.error();
+      }
+      LOGGER.warning(
+          getLogMessage("could not dispose of file (" + file + "): " + ex));
+      return false;
+    }
+  }
+
+  /**
+   * Dispose of the processed file. The file is recorded in the dispatched log
+   * and then queued. If the dispose thread is not running the file is only
+   * recorded in the dispatched log and is disposed of at the next startup. If
+   * the file could not be recorded it is not disposed of but is still pending
+   * so that it is only dispatched again after a restart.
+   * 
+   * @param file the file.
+   */
+  public void dispose(Path file)
+  {
+    final ByteBuffer entry = ByteBuffer
+        .wrap((getLogName(file) + "\n").getBytes(StandardCharsets.UTF_8));
+    final long entryNum;
+    synchronized (this)
+    {
+      if (log == null)
+      {
+        // a dispatch that completed after the shutdown timed out
+        try (FileChannel channel = openLog())
+        {
+          channel.write(entry);
+          channel.force(false);
+        }
+        catch (IOException ex)
+        {
+          LOGGER.warning(
+              getLogMessage("could not write dispatched log: " + ex));
+        }
+        return;
+      }
+      pending.add(file);
+      try
+      {
+        log.write(entry);
+      }
+      catch (IOException ex)
+      {
+        LOGGER.warning(getLogMessage("could not write dispatched log, not "
+            + "disposing of file (" + file + "): " + ex));
+        return;
+      }
+      logEntries++;
+      entryNum = ++logWritten;
+    }
+    try
+    {
+      syncLog(entryNum);
+    }
+    catch (IOException ex)
+    {
+      LOGGER.warning(getLogMessage("could not sync dispatched log, not "
+          + "disposing of file (" + file + "): " + ex));
+      return;
+    }
+    queue.add(file);
+  }
+
+  /**
+   * Get the number of files that have been queued but not disposed of.
+   * 
+   * @return the number of files.
+   */
+  public int getBacklog()
+  {
+    return pending.size();
+  }
+
+  /**
+   * Get the file key of the dispatched log.
+   * 
+   * @return the file key or null if not supported by the file system.
+   * @throws IOException if the dispatched log does not exist.
+   */
+  private Object getLogKey() throws IOException
+  {
+    return Files.readAttributes(logFile, BasicFileAttributes.class).fileKey();
+  }
+
+  /**
+   * Get the name of the file in the dispatched log.
+   * 
+   * @param file the file.
+   * @return the path relative to the dispatched log directory, which includes
+   *         the shard directory if any.
+   */
+  private String getLogName(Path file)
+  {
+    final Path dir = logFile.getParent();
+    if (dir != null && file.startsWith(dir))
+    {
+      return dir.relativize(file).toString();
+    }
+    return file.getFileName().toString();
+  }
+
+  /**
+   * Get the log message.
+   * 
+   * @param message the message.
+   * @return the log message.
+   */
+  private String getLogMessage(String message)
+  {
+    return "[" + name + "] " + message;
+  }
+
+  /**
+   * Determine if the file has been queued but not disposed of.
+   * 
+   * @param file the file.
+   * @return true if the file has been queued but not disposed of.
+   */
+  public boolean isPending(Path file)
+  {
+    return pending.contains(file);
+  }
+
+  /**
+   * Open the dispatched log for appending.
+   * 
+   * @return the channel.
+   * @throws IOException if an I/O error occurs.
+   */
+  private FileChannel openLog() throws IOException
+  {
+    return FileChannel.open(logFile, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+  }
+
+  /**
+   * Read the files in the dispatched log that still exist.
+   * 
+   * @return the files.
+   * @throws IOException if an I/O error occurs.
+   */
+  private Set<Path> readLog() throws IOException
+  {
+    final Set<Path> files = new LinkedHashSet<Path>();
+    if (!Files.exists(logFile))
+    {
+      return files;
+    }
+    Path file;
+    for (String filename : Files.readAllLines(logFile,
+        StandardCharsets.UTF_8))
+    {
+      if (!filename.isEmpty())
+      {
+        // a partial line written by a process that stopped does not exist
+        file = logFile.resolveSibling(filename);
+        if (Files.exists(file))
+        {
+          files.add(file);
+        }
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Replace the dispatched log with the files that still exist.
+   * 
+   * @throws IOException if an I/O error occurs.
+   */
+  private void replaceLog() throws IOException
+  {
+    final Set<Path> files = readLog();
+    if (files.isEmpty())
+    {
+      log.truncate(0);
+      log.force(false);
+    }
+    else
+    {
+      final Path tempFile = logFile
+          .resolveSibling(logFile.getFileName() + EIDSConst.TEMP_FILE_EXT);
+      final StringBuilder sb = new StringBuilder();
+      for (Path file : files)
+      {
+        sb.append(getLogName(file)).append('\n');
+      }
+      final ByteBuffer buffer = ByteBuffer
+          .wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+      try (FileChannel channel = FileChannel.open(tempFile,
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING))
+      {
+        while (buffer.hasRemaining())
+        {
+          channel.write(buffer);
+        }
+        // sync before the rename so that the log is never empty or partial
+        channel.force(false);
+      }
+      Files.move(tempFile, logFile, StandardCopyOption.ATOMIC_MOVE);
+      log.close();
+      log = openLog();
+      logKey = getLogKey();
+    }
+    logEntries = files.size();
+  }
+
+  @Override
+  public void run()
+  {
+    final List<Path> files = new ArrayList<Path>();
+    Path file;
+    while (running || !queue.isEmpty())
+    {
+      try
+      {
+        long timeout = POLL_MS;
+        if (!retries.isEmpty())
+        {
+          timeout = Math.max(0, Math.min(timeout,
+              retries.peek().getTime() - System.currentTimeMillis()));
+        }
+        file = queue.poll(timeout, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException ex)
+      {
+        file = null;
+      }
+      if (file != null)
+      {
+        files.add(file);
+        queue.drainTo(files);
+        for (Path f : files)
+        {
+          if (f != SHUTDOWN_PATH && !disposeFile(f))
+          {
+            retries.add(new FileRetry(f, 1));
+            continue;
+          }
+          pending.remove(f);
+        }
+        files.clear();
+      }
+      FileRetry retry;
+      while (!retries.isEmpty()
+          && retries.peek().getTime() <= System.currentTimeMillis())
+      {
+        retry = retries.poll();
+        if (disposeFile(retry.getFile()))
+        {
+          pending.remove(retry.getFile());
+        }
+        else
+        {
+          retries.add(retry.next());
+        }
+      }
+      if (logEntries >= LOG_COMPACT_ENTRIES)
+      {
+        try
+        {
+          compactLog();
+        }
+        catch (IOException ex)
+        {
+          LOGGER.warning(
+              getLogMessage("could not compact dispatched log: " + ex));
+        }
+      }
+    }
+    if (!retries.isEmpty())
+    {
+      // the files are in the dispatched log and are disposed of at startup
+      LOGGER.warning(getLogMessage(
+          "could not dispose of " + retries.size() + " files before shutdown"));
+    }
+    synchronized (this)
+    {
+      try
+      {
+        log.close();
+      }
+      catch (IOException ex)
+      {
+      }
+      log = null;
+    }
+  }
+
+  /**
+   * Stop the dispose thread after the queued files have been disposed of.
+   * 
+   * @throws InterruptedException if interrupted.
+   */
+  public void shutdown() throws InterruptedException
+  {
+    running = false;
+    // do not interrupt since that would close the dispatched log
+    queue.add(SHUTDOWN_PATH);
+    final Thread t;
+    synchronized (this)
+    {
+      t = thread;
+      thread = null;
+    }
+    if (t != null)
+    {
+      t.join();
+    }
+  }
+
+  /**
+   * Open the dispatched log, queue the files that were dispatched but not
+   * disposed of before the last shutdown and start the dispose thread.
+   * 
+   * @throws IOException if the dispatched log could not be opened.
+   */
+  public synchronized void startup() throws IOException
+  {
+    if (thread != null)
+    {
+      return;
+    }
+    // the log is in the claim directory when claiming files
+    Files.createDirectories(logFile.getParent());
+    final Set<Path> files = readLog();
+    log = openLog();
+    logKey = getLogKey();
+    logEntries = 0;
+    if (!files.isEmpty())
+    {
+      LOGGER.info(getLogMessage("disposing of " + files.size()
+          + " files dispatched before the last shutdown"));
+      pending.addAll(files);
+      queue.addAll(files);
+    }
+    replaceLog();
+    running = true;
+    thread = new Thread(this, name + "-dispose");
+    thread.start();
+  }
+
+  /**
+   * Sync the dispatched log unless the entry has already been synced by
+   * another thread.
+   * 
+   * @param entryNum the number of the entry.
+   * @throws IOException if an I/O error occurs.
+   */
+  private void syncLog(long entryNum) throws IOException
+  {
+    synchronized (logSyncLock)
+    {
+      if (logSynced >= entryNum)
+      {
+        return;
+      }
+      final FileChannel channel;
+      final long written;
+      synchronized (this)
+      {
+        channel = log;
+        written = logWritten;
+      }
+      if (channel == null)
+      {
+        throw new ClosedChannelException();
+      }
+      channel.force(false);
+      synchronized (this)
+      {
+        // the entries were lost if the log was removed while they were written
+        checkLog();
+      }
+      logSynced = written;
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package com.isti.pdl.eidsutil;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads notification files into a buffer with as few system calls as
+ * possible. Small files are read with a single bulk read into a reused direct
+ * buffer, files at or above the map threshold are memory mapped. The returned
+ * buffer is only valid until the next file is read.
+ */
+public class NotificationFileReader
+{
+  /** The default map threshold in bytes. */
+  public static final int DEFAULT_MAPTHRESHOLD = 1024 * 1024;
+  /** The initial buffer capacity. */
+  private static final int INITIAL_CAPACITY = 8192;
+
+  /** The reused direct buffer. */
+  private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+  /** The number of bytes read from the last file. */
+  private long lastBytesRead;
+  /** The number of system calls for the last file. */
+  private int lastSyscalls;
+  /** The map threshold in bytes. */
+  private long mapThreshold = DEFAULT_MAPTHRESHOLD;
+  /** The total number of bytes read. */
+  private long totalBytesRead;
+  /** The total number of files read. */
+  private long totalFiles;
+  /** The total number of system calls. */
+  private long totalSyscalls;
+
+  /**
+   * Get the number of bytes read from the last file.
+   * 
+   * @return the number of bytes.
+   */
+  public long getLastBytesRead()
+  {
+    return lastBytesRead;
+  }
+
+  /**
+   * Get the number of system calls used to read the last file. This counts
+   * the open, size, read or map and close calls.
+   * 
+   * @return the number of system calls.
+   */
+  public int getLastSyscalls()
+  {
+    return lastSyscalls;
+  }
+
+  /**
+   * Get the map threshold.
+   * 
+   * @return the size in bytes at or above which files are memory mapped.
+   */
+  public long getMapThreshold()
+  {
+    return mapThreshold;
+  }
+
+  /**
+   * Get the total number of bytes read.
+   * 
+   * @return the total number of bytes.
+   */
+  public long getTotalBytesRead()
+  {
+    return totalBytesRead;
+  }
+
+  /**
+   * Get the total number of files read.
+   * 
+   * @return the total number of files.
+   */
+  public long getTotalFiles()
+  {
+    return totalFiles;
+  }
+
+  /**
+   * Get the total number of system calls.
+   * 
+   * @return the total number of system calls.
+   */
+  public long getTotalSyscalls()
+  {
+    return totalSyscalls;
+  }
+
+  /**
+   * Read the file.
+   * 
+   * @param file the file.
+   * @return the buffer containing the file contents.
+   * @throws java.nio.file.NoSuchFileException if the file does not exist.
+   * @throws IOException                       if an I/O error occurs.
+   */
+  public ByteBuffer read(Path file) throws IOException
+  {
+    int syscalls = 1; // open
+    final ByteBuffer b;
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.READ))
+    {
+      final long size = channel.size();
+      syscalls++;
+      if (size >= mapThreshold)
+      {
+        b = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        syscalls++;
+      }
+      else
+      {
+        if (buffer.capacity() < size)
+        {
+          buffer = ByteBuffer.allocateDirect(
+              Math.max((int) size, buffer.capacity() * 2));
+        }
+        b = buffer;
+        // cast for compatibility with the Java 8 runtime
+        ((Buffer) b).clear().limit((int) size);
+        while (b.hasRemaining())
+        {
+          syscalls++;
+          if (channel.read(b) < 0)
+          {
+            break;
+          }
+        }
+        ((Buffer) b).flip();
+      }
+    }
+    syscalls++; // close
+    lastBytesRead = b.remaining();
+    lastSyscalls = syscalls;
+    totalBytesRead += lastBytesRead;
+    totalSyscalls += syscalls;
+    totalFiles++;
+    return b;
+  }
+
+  /**
+   * Set the map threshold.
+   * 
+   * @param mapThreshold the size in bytes at or above which files are memory
+   *                     mapped.
+   */
+  public void setMapThreshold(long mapThreshold)
+  {
+    this.mapThreshold = Math.max(0, mapThreshold);
+  }
+}
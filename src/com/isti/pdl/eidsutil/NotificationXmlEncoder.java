@@ -0,0 +1,236 @@
+package com.isti.pdl.eidsutil;
+
+import java.net.URL;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import gov.usgs.earthquake.distribution.Notification;
+import gov.usgs.earthquake.distribution.URLNotification;
+import gov.usgs.earthquake.distribution.URLNotificationParser;
+
+/**
+ * Encodes URL notifications as UTF-8 XML directly into a reused buffer. The
+ * XML is the same notification element written by
+ * gov.usgs.earthquake.distribution.URLNotificationXMLConverter without
+ * building intermediate strings or byte arrays. An encoder is not thread safe.
+ */
+public class NotificationXmlEncoder
+{
+  /** The XML declaration. */
+  private static final String XML_DECLARATION = "<?xml version=\"1.0\"?>\n";
+  /** The initial buffer capacity. */
+  private static final int INITIAL_CAPACITY = 1024;
+  /** The number of milliseconds in a day. */
+  private static final long MS_PER_DAY = 86400000L;
+
+  /** The reused buffer. */
+  private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+
+  /**
+   * Encode the notification.
+   * 
+   * @param notification the notification.
+   * @return the buffer containing the XML, which is only valid until the next
+   *         notification is encoded, or null if not a URL notification.
+   */
+  public ByteBuffer encode(Notification notification)
+  {
+    if (!(notification instanceof URLNotification))
+    {
+      return null;
+    }
+    final URLNotification n = (URLNotification) notification;
+    // cast for compatibility with the Java 8 runtime
+    ((Buffer) buffer).clear();
+    putAscii(XML_DECLARATION);
+    putAscii("<");
+    putAscii(URLNotificationParser.NOTIFICATION_ELEMENT);
+    putAscii(" xmlns=\"");
+    putAscii(URLNotificationParser.PRODUCT_XML_NAMESPACE);
+    putAscii("\" ");
+    putAscii(URLNotificationParser.ATTRIBUTE_PRODUCT_ID);
+    putAscii("=\"");
+    putEscaped(n.getProductId().toString());
+    putAscii("\" ");
+    putAscii(URLNotificationParser.ATTRIBUTE_PRODUCT_UPDATED);
+    putAscii("=\"");
+    putDate(n.getProductId().getUpdateTime());
+    final URL trackerURL = n.getTrackerURL();
+    if (trackerURL != null)
+    {
+      putAscii("\" ");
+      putAscii(URLNotificationParser.ATTRIBUTE_TRACKER_URL);
+      putAscii("=\"");
+      putEscaped(trackerURL.toString());
+    }
+    putAscii("\" ");
+    putAscii(URLNotificationParser.ATTRIBUTE_EXPIRES);
+    putAscii("=\"");
+    putDate(n.getExpirationDate());
+    putAscii("\" ");
+    putAscii(URLNotificationParser.ATTRIBUTE_URL);
+    putAscii("=\"");
+    putEscaped(n.getProductURL().toString());
+    putAscii("\"/>");
+    ((Buffer) buffer).flip();
+    return buffer;
+  }
+
+  /**
+   * Ensure the buffer has room for the specified number of bytes.
+   * 
+   * @param length the number of bytes.
+   */
+  private void ensureRemaining(int length)
+  {
+    if (buffer.remaining() < length)
+    {
+      final ByteBuffer b = ByteBuffer.allocate(
+          Math.max(buffer.capacity() * 2, buffer.position() + length));
+      ((Buffer) buffer).flip();
+      b.put(buffer);
+      buffer = b;
+    }
+  }
+
+  /**
+   * Put the ASCII text.
+   * 
+   * @param s the text.
+   */
+  private void putAscii(String s)
+  {
+    final int length = s.length();
+    ensureRemaining(length);
+    for (int i = 0; i < length; i++)
+    {
+      buffer.put((byte) s.charAt(i));
+    }
+  }
+
+  /**
+   * Put the date as an ISO 8601 UTC time with milliseconds.
+   * 
+   * @param date the date.
+   */
+  private void putDate(Date date)
+  {
+    final long time = date.getTime();
+    long days = Math.floorDiv(time, MS_PER_DAY);
+    int ms = (int) Math.floorMod(time, MS_PER_DAY);
+    // convert the days since the epoch to the civil date
+    days += 719468;
+    final long era = Math.floorDiv(days, 146097);
+    final int doe = (int) (days - era * 146097);
+    final int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+    final int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+    final int mp = (5 * doy + 2) / 153;
+    final int day = doy - (153 * mp + 2) / 5 + 1;
+    final int month = mp < 10 ? mp + 3 : mp - 9;
+    final long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+    ensureRemaining(24);
+    putDigits(year, 4);
+    buffer.put((byte) '-');
+    putDigits(month, 2);
+    buffer.put((byte) '-');
+    putDigits(day, 2);
+    buffer.put((byte) 'T');
+    putDigits(ms / 3600000, 2);
+    ms %= 3600000;
+    buffer.put((byte) ':');
+    putDigits(ms / 60000, 2);
+    ms %= 60000;
+    buffer.put((byte) ':');
+    putDigits(ms / 1000, 2);
+    buffer.put((byte) '.');
+    putDigits(ms % 1000, 3);
+    buffer.put((byte) 'Z');
+  }
+
+  /**
+   * Put the non-negative value zero padded to the specified number of digits.
+   * 
+   * @param value  the value.
+   * @param digits the number of digits.
+   */
+  private void putDigits(long value, int digits)
+  {
+    long divisor = 1;
+    for (int i = 1; i < digits; i++)
+    {
+      divisor *= 10;
+    }
+    while (divisor * 10 <= value)
+    {
+      divisor *= 10;
+    }
+    for (; divisor > 0; divisor /= 10)
+    {
+      buffer.put((byte) ('0' + (value / divisor) % 10));
+    }
+  }
+
+  /**
+   * Put the text as UTF-8 escaped for an XML attribute value.
+   * 
+   * @param s the text.
+   */
+  private void putEscaped(String s)
+  {
+    final int length = s.length();
+    // an escaped character is at most 6 bytes
+    ensureRemaining(length * 6);
+    char c;
+    int cp;
+    for (int i = 0; i < length; i++)
+    {
+      c = s.charAt(i);
+      switch (c)
+      {
+      case '&':
+        putAscii("&amp;");
+        break;
+      case '<':
+        putAscii("&lt;");
+        break;
+      case '>':
+        putAscii("&gt;");
+        break;
+      case '"':
+        putAscii("&quot;");
+        break;
+      default:
+        if (c < 0x80)
+        {
+          buffer.put((byte) c);
+        }
+        else if (c < 0x800)
+        {
+          buffer.put((byte) (0xc0 | (c >> 6)));
+          buffer.put((byte) (0x80 | (c & 0x3f)));
+        }
+        else if (Character.isHighSurrogate(c) && i + 1 < length
+            && Character.isLowSurrogate(s.charAt(i + 1)))
+        {
+          cp = Character.toCodePoint(c, s.charAt(++i));
+          buffer.put((byte) (0xf0 | (cp >> 18)));
+          buffer.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+          buffer.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+          buffer.put((byte) (0x80 | (cp & 0x3f)));
+        }
+        else if (Character.isSurrogate(c))
+        {
+          buffer.put((byte) '?');
+        }
+        else
+        {
+          buffer.put((byte) (0xe0 | (c >> 12)));
+          buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+          buffer.put((byte) (0x80 | (c & 0x3f)));
+        }
+        break;
+      }
+    }
+  }
+}
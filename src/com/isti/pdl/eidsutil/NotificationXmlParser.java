@@ -0,0 +1,156 @@
+package com.isti.pdl.eidsutil;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Date;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import gov.usgs.earthquake.distribution.URLNotification;
+import gov.usgs.earthquake.distribution.URLNotificationParser;
+import gov.usgs.earthquake.product.ProductId;
+import gov.usgs.util.XmlUtils;
+
+/**
+ * Pull parser for the notification XML written by the notification XML
+ * encoder and gov.usgs.earthquake.distribution.URLNotificationXMLConverter.
+ * Only a single empty notification element with the product ID, expires and
+ * URL attributes is accepted, anything else is left to the stock converter.
+ * Other attributes are ignored and the tracker URL is optional.
+ */
+public class NotificationXmlParser
+{
+  /** The XML input factory for each thread. */
+  private static final ThreadLocal<XMLInputFactory> FACTORY = ThreadLocal
+      .withInitial(() -> {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+            Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        return factory;
+      });
+
+  /**
+   * Parse the notification.
+   * 
+   * @param message the XML message.
+   * @return the URL notification or null if the message contains unexpected
+   *         content.
+   * @throws Exception if the message could not be parsed.
+   */
+  public static URLNotification parse(InputStream message) throws Exception
+  {
+    final XMLStreamReader reader = FACTORY.get()
+        .createXMLStreamReader(message);
+    try
+    {
+      return parse(reader);
+    }
+    finally
+    {
+      reader.close();
+    }
+  }
+
+  /**
+   * Parse the notification.
+   * 
+   * @param reader the XML stream reader.
+   * @return the URL notification or null if the message contains unexpected
+   *         content.
+   * @throws Exception if the message could not be parsed.
+   */
+  private static URLNotification parse(XMLStreamReader reader)
+      throws Exception
+  {
+    if (reader.nextTag() != XMLStreamConstants.START_ELEMENT
+        || !URLNotificationParser.NOTIFICATION_ELEMENT
+            .equals(reader.getLocalName())
+        || !URLNotificationParser.PRODUCT_XML_NAMESPACE
+            .equals(reader.getNamespaceURI()))
+    {
+      return null;
+    }
+    String id = null;
+    String expires = null;
+    String trackerURL = null;
+    String url = null;
+    String name;
+    for (int i = 0; i < reader.getAttributeCount(); i++)
+    {
+      name = reader.getAttributeLocalName(i);
+      if (URLNotificationParser.ATTRIBUTE_PRODUCT_ID.equals(name))
+      {
+        id = reader.getAttributeValue(i);
+      }
+      else if (URLNotificationParser.ATTRIBUTE_EXPIRES.equals(name))
+      {
+        expires = reader.getAttributeValue(i);
+      }
+      else if (URLNotificationParser.ATTRIBUTE_TRACKER_URL.equals(name))
+      {
+        trackerURL = reader.getAttributeValue(i);
+      }
+      else if (URLNotificationParser.ATTRIBUTE_URL.equals(name))
+      {
+        url = reader.getAttributeValue(i);
+      }
+      // any other attribute, such as updated which is part of the product
+      // ID, is not needed
+    }
+    if (id == null || expires == null || url == null
+        || !isEmptyElement(reader))
+    {
+      return null;
+    }
+    final Date expirationDate = XmlUtils.getDate(expires);
+    if (expirationDate == null)
+    {
+      return null;
+    }
+    return new URLNotification(ProductId.parse(id), expirationDate,
+        trackerURL != null ? new URL(trackerURL) : null, new URL(url));
+  }
+
+  /**
+   * Determine if the current element is empty and is the only element.
+   * 
+   * @param reader the XML stream reader.
+   * @return true if empty, false otherwise.
+   * @throws XMLStreamException if the XML could not be parsed.
+   */
+  private static boolean isEmptyElement(XMLStreamReader reader)
+      throws XMLStreamException
+  {
+    int event;
+    boolean ended = false;
+    while (reader.hasNext())
+    {
+      event = reader.next();
+      switch (event)
+      {
+      case XMLStreamConstants.END_ELEMENT:
+        ended = true;
+        break;
+      case XMLStreamConstants.COMMENT:
+      case XMLStreamConstants.PROCESSING_INSTRUCTION:
+      case XMLStreamConstants.SPACE:
+      case XMLStreamConstants.END_DOCUMENT:
+        break;
+      case XMLStreamConstants.CHARACTERS:
+        if (!reader.isWhiteSpace())
+        {
+          return false;
+        }
+        break;
+      default:
+        return false;
+      }
+    }
+    return ended;
+  }
+}
@@ -0,0 +1,256 @@
+package com.isti.pdl.eidsutil;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The pending notification files in priority lanes keyed by product type.
+ * The product type is taken from the filename so that the files do not need
+ * to be read. The files in each lane are kept in filename order and the lanes
+ * are scheduled by smooth weighted round robin, so the time critical types
+ * reach the receiver first during a large backlog while the other lanes still
+ * make progress. All of the notifications for a product are in the same lane
+ * so they are still processed in order.
+ * <p>
+ * The lanes are specified as lanes separated by ';', each a list of product
+ * types separated by ',' followed by '=' and the weight, for example
+ * "origin,associate=8;*=2;shakemap,dyfi=1". The "*" lane is for the other
+ * product types and is added with a weight of 1 if not specified.
+ */
+public class PriorityLanes
+{
+  /** The product type for the lane of the other product types. */
+  public static final String OTHER_TYPES = "*";
+
+  /** The current weight of each lane. */
+  private final int[] currentWeights;
+  /** The files in each lane and the time each file was detected. */
+  private final List<TreeMap<Path, Long>> lanes =
+      new ArrayList<TreeMap<Path, Long>>();
+  /** The notification file prefix. */
+  private final String notificationFilePrefix;
+  /** The lane for the other product types. */
+  private final int otherLane;
+  /** The number of files. */
+  private int size;
+  /** The lane for each product type. */
+  private final Map<String, Integer> typeLanes = new HashMap<String, Integer>();
+  /** The weight of each lane. */
+  private final int[] weights;
+
+  /**
+   * Create the priority lanes.
+   * 
+   * @param spec                   the lanes or null or empty string for a
+   *                               single lane.
+   * @param notificationFilePrefix the notification file prefix.
+   * @param comparator             the file order within each lane.
+   * @throws IllegalArgumentException if the lanes are not valid.
+   */
+  public PriorityLanes(String spec, String notificationFilePrefix,
+      Comparator<Path> comparator)
+  {
+    this.notificationFilePrefix = notificationFilePrefix;
+    final List<Integer> laneWeights = new ArrayList<Integer>();
+    int other = -1;
+    if (spec != null && !spec.trim().isEmpty())
+    {
+      String types;
+      int weight;
+      int index;
+      for (String lane : spec.split(";"))
+      {
+        index = lane.indexOf('=');
+        types = index >= 0 ? lane.substring(0, index) : lane;
+        try
+        {
+          weight = index >= 0
+              ? Integer.parseInt(lane.substring(index + 1).trim())
+              : 1;
+        }
+        catch (NumberFormatException ex)
+        {
+          throw new IllegalArgumentException(
+              "invalid priority lane weight (" + lane + ")");
+        }
+        if (weight <= 0 || types.trim().isEmpty())
+        {
+          throw new IllegalArgumentException(
+              "invalid priority lane (" + lane + ")");
+        }
+        for (String type : types.split(","))
+        {
+          type = type.trim();
+          if (OTHER_TYPES.equals(type))
+          {
+            other = laneWeights.size();
+          }
+          else if (!type.isEmpty()
+              && typeLanes.putIfAbsent(UtilFns.getNotificationTypeName(type),
+                  laneWeights.size()) != null)
+          {
+            throw new IllegalArgumentException(
+                "product type in more than one priority lane (" + type + ")");
+          }
+        }
+        laneWeights.add(weight);
+      }
+    }
+    if (other < 0)
+    {
+      other = laneWeights.size();
+      laneWeights.add(1);
+    }
+    otherLane = other;
+    weights = new int[laneWeights.size()];
+    currentWeights = new int[weights.length];
+    for (int i = 0; i < weights.length; i++)
+    {
+      weights[i] = laneWeights.get(i);
+      lanes.add(new TreeMap<Path, Long>(comparator));
+    }
+  }
+
+  /**
+   * Get the first file in filename order.
+   * 
+   * @return the first file or null if none.
+   */
+  public Path firstKey()
+  {
+    Path first = null;
+    Path file;
+    final Comparator<? super Path> comparator = lanes.get(0).comparator();
+    for (TreeMap<Path, Long> lane : lanes)
+    {
+      if (!lane.isEmpty())
+      {
+        file = lane.firstKey();
+        if (first == null || comparator.compare(file, first) < 0)
+        {
+          first = file;
+        }
+      }
+    }
+    return first;
+  }
+
+  /**
+   * Get the lane for the file.
+   * 
+   * @param file the file.
+   * @return the lane.
+   */
+  private TreeMap<Path, Long> getLane(Path file)
+  {
+    if (typeLanes.isEmpty())
+    {
+      return lanes.get(otherLane);
+    }
+    final String type = UtilFns.getNotificationType(
+        file.getFileName().toString(), notificationFilePrefix);
+    final Integer lane = type != null ? typeLanes.get(type) : null;
+    return lanes.get(lane != null ? lane : otherLane);
+  }
+
+  /**
+   * Determine if there are no files.
+   * 
+   * @return true if there are no files, false otherwise.
+   */
+  public boolean isEmpty()
+  {
+    return size == 0;
+  }
+
+  /**
+   * Get the next lane by smooth weighted round robin between the lanes that
+   * have files.
+   * 
+   * @return the lane.
+   */
+  private TreeMap<Path, Long> nextLane()
+  {
+    int next = -1;
+    int total = 0;
+    for (int i = 0; i < weights.length; i++)
+    {
+      if (lanes.get(i).isEmpty())
+      {
+        // an empty lane does not save up its turns
+        currentWeights[i] = 0;
+        continue;
+      }
+      currentWeights[i] += weights[i];
+      total += weights[i];
+      if (next < 0 || currentWeights[i] > currentWeights[next])
+      {
+        next = i;
+      }
+    }
+    currentWeights[next] -= total;
+    size--;
+    return lanes.get(next);
+  }
+
+  /**
+   * Remove the first file of the next lane.
+   * 
+   * @return the file and the time it was detected or null if none.
+   */
+  public Map.Entry<Path, Long> pollFirstEntry()
+  {
+    if (size == 0)
+    {
+      return null;
+    }
+    return nextLane().pollFirstEntry();
+  }
+
+  /**
+   * Remove the last file of the next lane.
+   * 
+   * @return the file and the time it was detected or null if none.
+   */
+  public Map.Entry<Path, Long> pollLastEntry()
+  {
+    if (size == 0)
+    {
+      return null;
+    }
+    return nextLane().pollLastEntry();
+  }
+
+  /**
+   * Add the file if it is not already pending.
+   * 
+   * @param file       the file.
+   * @param detectTime the time the file was detected.
+   * @return the time the file was detected if it was already pending or null
+   *         if it was added.
+   */
+  public Long putIfAbsent(Path file, Long detectTime)
+  {
+    final Long time = getLane(file).putIfAbsent(file, detectTime);
+    if (time == null)
+    {
+      size++;
+    }
+    return time;
+  }
+
+  /**
+   * Get the number of files.
+   * 
+   * @return the number of files.
+   */
+  public int size()
+  {
+    return size;
+  }
+}
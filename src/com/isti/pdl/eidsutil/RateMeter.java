@@ -0,0 +1,89 @@
+package com.isti.pdl.eidsutil;
+
+/**
+ * Counts events and reports the rate over the last minute.
+ */
+public class RateMeter
+{
+  /** The number of one second intervals in the window. */
+  private static final int INTERVALS = 60;
+
+  /** The count for each second in the window. */
+  private final long[] counts = new long[INTERVALS];
+  /** The current second. */
+  private long second = currentSecond();
+  /** The start second. */
+  private final long startSecond = second;
+  /** The total count. */
+  private long total;
+
+  /**
+   * Get the current second.
+   * 
+   * @return the current second.
+   */
+  private static long currentSecond()
+  {
+    return System.currentTimeMillis() / 1000;
+  }
+
+  /**
+   * Advance the window to the current second.
+   */
+  private void advance()
+  {
+    final long now = currentSecond();
+    for (long s = Math.max(second + 1, now - INTERVALS + 1); s <= now; s++)
+    {
+      counts[(int) (s % INTERVALS)] = 0;
+    }
+    if (now > second)
+    {
+      second = now;
+    }
+  }
+
+  /**
+   * Get the count.
+   * 
+   * @return the total number of events.
+   */
+  public synchronized long getCount()
+  {
+    return total;
+  }
+
+  /**
+   * Get the rate.
+   * 
+   * @return the events per second over the last minute, not including the
+   *         current second.
+   */
+  public synchronized double getRate()
+  {
+    advance();
+    final int intervals = (int) Math.min(INTERVALS - 1, second - startSecond);
+    if (intervals <= 0)
+    {
+      return 0;
+    }
+    long sum = 0;
+    for (int i = 1; i <= intervals; i++)
+    {
+      sum += counts[(int) ((second - i) % INTERVALS)];
+    }
+    return sum / (double) intervals;
+  }
+
+  /**
+   * Mark the events.
+   * 
+   * @param n the number of events.
+   */
+  public synchronized void mark(long n)
+  {
+    advance();
+    counts[(int) (second % INTERVALS)] += n;
+    total += n;
+  }
+}
@@ -1,22 +1,37 @@
 package com.isti.pdl.eidsutil;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collections;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import gov.usgs.earthquake.distribution.Notification;
 import gov.usgs.earthquake.distribution.URLNotification;
 import gov.usgs.earthquake.distribution.URLNotificationXMLConverter;
+import gov.usgs.earthquake.product.ProductId;
 import gov.usgs.util.Config;
 import gov.usgs.util.Configurable;
 
 public class UtilFns implements EIDSConst
 {
+  /** Logging object. */
+  private static final Logger LOGGER = Logger
+      .getLogger(UtilFns.class.getName());
   /** The working directory. */
   private static final File WORKING_DIR;
   static
@@ -59,6 +74,75 @@ public class UtilFns implements EIDSConst
     return WORKING_DIR;
   }
 
+  /**
+   * Get the journal segment files.
+   * 
+   * @param notificationPath       the notification path.
+   * @param notificationFilePrefix the notification file prefix.
+   * @param files                  the files.
+   * @return the files sorted in segment order.
+   * @throws IOException if an I/O error occurs.
+   */
+  public static List<Path> getJournalSegments(Path notificationPath,
+      String notificationFilePrefix, List<Path> files) throws IOException
+  {
+    try (Stream<Path> stream = Files.list(notificationPath))
+    {
+      stream.forEach(file -> {
+        final String filename = file.getFileName().toString();
+        if (filename.startsWith(notificationFilePrefix)
+            && filename.endsWith(JOURNAL_FILE_EXT))
+        {
+          files.add(file);
+        }
+      });
+    }
+    Collections.sort(files);
+    return files;
+  }
+
+  /**
+   * Get the journal segment filename.
+   * 
+   * @param notificationFilePrefix the notification file prefix.
+   * @param segment                the segment number.
+   * @return the journal segment filename.
+   */
+  public static String getJournalSegmentName(String notificationFilePrefix,
+      long segment)
+  {
+    // zero pad so that the filenames sort in segment order
+    return notificationFilePrefix + String.format("%020d", segment)
+        + JOURNAL_FILE_EXT;
+  }
+
+  /**
+   * Get the journal segment number.
+   * 
+   * @param notificationFilePrefix the notification file prefix.
+   * @param file                   the journal segment file.
+   * @return the segment number or -1 if not a journal segment file.
+   */
+  public static long getJournalSegmentNumber(String notificationFilePrefix,
+      Path file)
+  {
+    final String filename = file.getFileName().toString();
+    if (filename.startsWith(notificationFilePrefix)
+        && filename.endsWith(JOURNAL_FILE_EXT))
+    {
+      try
+      {
+        return Long.parseLong(filename.substring(
+            notificationFilePrefix.length(),
+            filename.length() - JOURNAL_FILE_EXT.length()));
+      }
+      catch (NumberFormatException ex)
+      {
+      }
+    }
+    return -1;
+  }
+
   /**
    * Get the log message.
    * 
@@ -83,23 +167,133 @@ public class UtilFns implements EIDSConst
   public static List<Path> getNotificationFiles(Path notificationPath,
       String notificationFilePrefix, List<Path> files) throws IOException
   {
-    Files.list(notificationPath).forEach(file -> {
-      if (!Files.exists(file))
+    try (Stream<Path> stream = Files.list(notificationPath))
+    {
+      stream.forEach(file -> {
+        if (isNotificationFile(file.getFileName().toString(),
+            notificationFilePrefix))
+        {
+          files.add(file);
+        }
+      });
+    }
+    return files;
+  }
+
+  /**
+   * Get the time a notification file was written from its filename.
+   * 
+   * @param filename               the filename.
+   * @param notificationFilePrefix the notification file prefix.
+   * @return the time in milliseconds or -1 if not known.
+   */
+  public static long getNotificationTime(String filename,
+      String notificationFilePrefix)
+  {
+    if (!filename.startsWith(notificationFilePrefix))
+    {
+      return -1;
+    }
+    long time = -1;
+    char c;
+    for (int i = notificationFilePrefix.length(); i < filename.length(); i++)
+    {
+      c = filename.charAt(i);
+      if (c < '0' || c > '9')
       {
-        return;
+        break;
       }
-      final String filename = file.getFileName().toString();
-      if (!filename.startsWith(notificationFilePrefix))
+      time = Math.max(0, time) * 10 + (c - '0');
+    }
+    return time;
+  }
+
+  /**
+   * Get the product type of a notification file from its filename.
+   * 
+   * @param filename               the filename.
+   * @param notificationFilePrefix the notification file prefix.
+   * @return the product type as written by getNotificationTypeName or null if
+   *         not known.
+   */
+  public static String getNotificationType(String filename,
+      String notificationFilePrefix)
+  {
+    if (!filename.startsWith(notificationFilePrefix))
+    {
+      return null;
+    }
+    int end = filename.length();
+    if (filename.endsWith(NOTIFICATION_FILE_EXT))
+    {
+      end -= NOTIFICATION_FILE_EXT.length();
+    }
+    // the product type follows the time, the sequence number and the
+    // instance ID
+    int index = notificationFilePrefix.length();
+    for (int i = 0; i < 3; i++)
+    {
+      index = filename.indexOf('_', index) + 1;
+      if (index <= 0 || index >= end)
       {
-        return;
+        return null;
       }
-      if (!filename.endsWith(NOTIFICATION_FILE_EXT))
+    }
+    return filename.substring(index, end);
+  }
+
+  /**
+   * Get the product type for use in a filename.
+   * 
+   * @param type the product type.
+   * @return the product type with the characters other than letters, digits,
+   *         '-', '.' and '_' replaced by '-'.
+   */
+  public static String getNotificationTypeName(String type)
+  {
+    final StringBuilder sb = new StringBuilder(type.length());
+    char c;
+    for (int i = 0; i < type.length(); i++)
+    {
+      c = type.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+          || (c >= '0' && c <= '9') || c == '-' || c == '.' || c == '_')
       {
-        return;
+        sb.append(c);
       }
-      files.add(file);
-    });
-    return files;
+      else
+      {
+        sb.append('-');
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Get the product key for the notification. The key identifies the product
+   * (source, type and code) without the update time.
+   * 
+   * @param notification the notification.
+   * @return the product key.
+   */
+  public static String getProductKey(Notification notification)
+  {
+    final ProductId id = notification.getProductId();
+    return id.getSource() + ":" + id.getType() + ":" + id.getCode();
+  }
+
+  /**
+   * Determine if the filename is for a notification file.
+   * 
+   * @param filename               the filename.
+   * @param notificationFilePrefix the notification file prefix.
+   * @return true if a notification file, false otherwise.
+   */
+  public static boolean isNotificationFile(String filename,
+      String notificationFilePrefix)
+  {
+    return filename.startsWith(notificationFilePrefix)
+        && filename.endsWith(NOTIFICATION_FILE_EXT);
   }
 
   /**
@@ -122,6 +316,12 @@ public class UtilFns implements EIDSConst
         {
           continue;
         }
+        // the option must not just be a prefix of another option
+        index = OPTION_PREFIX.length() + option.length();
+        if (index < arg.length() && arg.charAt(index) != '=')
+        {
+          continue;
+        }
         index = arg.indexOf('=');
         if (sb != null && index != -1)
         {
@@ -134,15 +334,61 @@ public class UtilFns implements EIDSConst
   }
 
   /**
-   * Parses an XML message into an URL notification.
+   * Parses a notification message in either the binary or the XML format into
+   * an URL notification.
+   * 
+   * @param message the message.
+   * @return the URL notification.
+   * @throws Exception if error.
+   */
+  public static URLNotification parseNotification(ByteBuffer message)
+      throws Exception
+  {
+    if (NotificationBinaryCodec.isBinary(message))
+    {
+      return NotificationBinaryCodec.decode(message);
+    }
+    try (final InputStream in = new ByteBufferInputStream(message))
+    {
+      return parseXml(in);
+    }
+  }
+
+  /**
+   * Parses an XML message into an URL notification. The message is parsed with
+   * the notification XML parser and the stock converter is used if the message
+   * contains unexpected content.
    * 
    * @param message the XML message.
    * @return the URL notification.
    * @throws Exception if error.
    */
-  public static URLNotification parseXml(final InputStream message)
+  public static URLNotification parseXml(InputStream message)
       throws Exception
   {
+    if (!message.markSupported())
+    {
+      message = new BufferedInputStream(message);
+    }
+    message.mark(Integer.MAX_VALUE);
+    try
+    {
+      final URLNotification notification = NotificationXmlParser
+          .parse(message);
+      if (notification != null)
+      {
+        return notification;
+      }
+      if (LOGGER.isLoggable(Level.FINE))
+        LOGGER.fine("unexpected notification XML content, using converter");
+    }
+    catch (Exception ex)
+    {
+      if (LOGGER.isLoggable(Level.FINE))
+        LOGGER.fine("could not parse notification XML, using converter: "
+            + ex);
+    }
+    message.reset();
     return URLNotificationXMLConverter.parseXML(message);
   }
 
@@ -162,6 +408,26 @@ public class UtilFns implements EIDSConst
     }
   }
 
+  /**
+   * Register the MBean with the platform MBean server.
+   * 
+   * @param mbean the MBean.
+   * @param type  the type.
+   * @param name  the name.
+   * @return the object name.
+   * @throws JMException if the MBean could not be registered.
+   */
+  public static ObjectName registerMBean(Object mbean, String type,
+      String name) throws JMException
+  {
+    final ObjectName objectName = new ObjectName(
+        UtilFns.class.getPackage().getName() + ":type=" + type + ",name="
+            + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(mbean,
+        objectName);
+    return objectName;
+  }
+
   /**
    * Converts a notification to XML.
    * 
@@ -179,4 +445,19 @@ public class UtilFns implements EIDSConst
       return "";
     }
   }
+
+  /**
+   * Unregister the MBean from the platform MBean server.
+   * 
+   * @param objectName the object name.
+   * @throws JMException if the MBean could not be unregistered.
+   */
+  public static void unregisterMBean(ObjectName objectName) throws JMException
+  {
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    if (server.isRegistered(objectName))
+    {
+      server.unregisterMBean(objectName);
+    }
+  }
 }